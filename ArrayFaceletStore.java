@@ -0,0 +1,124 @@
+package concurrentcube;
+
+/**
+ * Default on-heap layout: one int array per row of every side.
+ */
+public class ArrayFaceletStore implements FaceletStore {
+    private final int size;
+    private final int[][][] cube;
+
+    public ArrayFaceletStore(int size) {
+        this.size = size;
+        this.cube = new int[NUMBER_OF_SIDES][size][size];
+        for (int i = 0; i < NUMBER_OF_SIDES; i++) {
+            for (int j = 0; j < size; j++) {
+                for (int k = 0; k < size; k++) {
+                    cube[i][j][k] = i;
+                }
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int get(int side, int row, int column) {
+        return cube[side][row][column];
+    }
+
+    @Override
+    public void set(int side, int row, int column, int colour) {
+        cube[side][row][column] = colour;
+    }
+
+    @Override
+    public void readStrip(int strip, int[] dst) {
+        if (Strip.isPlainRow(strip))
+            System.arraycopy(cube[Strip.side(strip)][Strip.index(strip)], 0, dst, 0, size);
+        else
+            FaceletStore.super.readStrip(strip, dst);
+    }
+
+    @Override
+    public void cycle(int a, int b, int c, int d) {
+        if (Strip.isPlainRow(a) && Strip.isPlainRow(b) && Strip.isPlainRow(c) && Strip.isPlainRow(d)) {
+            // Plain rows only: rotate the row references, nothing is copied.
+            int[] tempD = cube[Strip.side(d)][Strip.index(d)];
+            cube[Strip.side(d)][Strip.index(d)] = cube[Strip.side(c)][Strip.index(c)];
+            cube[Strip.side(c)][Strip.index(c)] = cube[Strip.side(b)][Strip.index(b)];
+            cube[Strip.side(b)][Strip.index(b)] = cube[Strip.side(a)][Strip.index(a)];
+            cube[Strip.side(a)][Strip.index(a)] = tempD;
+            return;
+        }
+        // Single pass gathering one facelet from each strip, no temporary rows.
+        FaceletStore.super.cycle(a, b, c, d);
+    }
+
+    @Override
+    public void cycleAll(int[][] groups) {
+        for (int[] group : groups) {
+            if (!Strip.isPlainRow(group[0]) || !Strip.isPlainRow(group[1])
+                    || !Strip.isPlainRow(group[2]) || !Strip.isPlainRow(group[3])) {
+                FaceletStore.super.cycleAll(groups);
+                return;
+            }
+        }
+        for (int[] group : groups) {
+            cycle(group[0], group[1], group[2], group[3]);
+        }
+    }
+
+    @Override
+    public void turnClockwise(int side) {
+        int[][] face = cube[side];
+        int last = size - 1;
+        for (int iBlock = 0; iBlock < size / 2; iBlock += FACE_TILE) {
+            int iEnd = Math.min(iBlock + FACE_TILE, size / 2);
+            for (int jBlock = 0; jBlock < (size + 1) / 2; jBlock += FACE_TILE) {
+                int jEnd = Math.min(jBlock + FACE_TILE, (size + 1) / 2);
+                for (int i = iBlock; i < iEnd; i++) {
+                    for (int j = jBlock; j < jEnd; j++) {
+                        int temp = face[last - j][i];
+                        face[last - j][i] = face[last - i][last - j];
+                        face[last - i][last - j] = face[j][last - i];
+                        face[j][last - i] = face[i][j];
+                        face[i][j] = temp;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void turnCounterclockwise(int side) {
+        int[][] face = cube[side];
+        int last = size - 1;
+        for (int iBlock = 0; iBlock < size / 2; iBlock += FACE_TILE) {
+            int iEnd = Math.min(iBlock + FACE_TILE, size / 2);
+            for (int jBlock = 0; jBlock < (size + 1) / 2; jBlock += FACE_TILE) {
+                int jEnd = Math.min(jBlock + FACE_TILE, (size + 1) / 2);
+                for (int i = iBlock; i < iEnd; i++) {
+                    for (int j = jBlock; j < jEnd; j++) {
+                        int temp = face[i][j];
+                        face[i][j] = face[j][last - i];
+                        face[j][last - i] = face[last - i][last - j];
+                        face[last - i][last - j] = face[last - j][i];
+                        face[last - j][i] = temp;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void export(int side, byte[] dst, int offset) {
+        for (int[] row : cube[side]) {
+            for (int colour : row) {
+                dst[offset++] = (byte) colour;
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package concurrentcube;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Runs callbacks on a single background thread, in the order they were
+ * published. The queue is bounded, so publishers block once listeners
+ * fall behind by more than its capacity.
+ */
+class CallbackDispatcher {
+    private static final int BATCH = 256;
+    // Queued by close, the worker stops once it has run everything before it.
+    private static final Runnable STOP = () -> {
+    };
+
+    private final BlockingQueue<Runnable> queue;
+    private final Thread worker;
+
+    CallbackDispatcher(int capacity) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.worker = new Thread(this::dispatch, "cube-callbacks");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // A failing callback is reported to the uncaught exception handler of
+    // the worker, which keeps running the ones after it.
+    private void run(Runnable callback) {
+        try {
+            callback.run();
+        } catch (RuntimeException e) {
+            worker.getUncaughtExceptionHandler().uncaughtException(worker, e);
+        }
+    }
+
+    private void dispatch() {
+        List<Runnable> batch = new ArrayList<>(BATCH);
+        boolean stopped = false;
+        while (!stopped) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            queue.drainTo(batch, BATCH - 1);
+            for (Runnable callback : batch) {
+                if (callback == STOP)
+                    stopped = true;
+                else
+                    run(callback);
+            }
+            batch.clear();
+        }
+        // Callbacks published while closing.
+        Runnable callback;
+        while ((callback = queue.poll()) != null)
+            run(callback);
+    }
+
+    // Blocks while the queue is full. If interrupted while waiting the
+    // callback runs on the calling thread instead, so it is never lost.
+    void publish(Runnable callback) {
+        try {
+            queue.put(callback);
+        } catch (InterruptedException e) {
+            callback.run();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Runs the callbacks that are already queued and stops the worker.
+    // A callback running meanwhile is not interrupted.
+    void close() {
+        boolean interrupted = false;
+        boolean queued = false;
+        while (worker.isAlive()) {
+            try {
+                if (!queued) {
+                    queue.put(STOP);
+                    queued = true;
+                }
+                worker.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+}
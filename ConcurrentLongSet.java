@@ -0,0 +1,61 @@
+package concurrentcube;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed capacity set of longs with lock-free insertion: open addressing
+ * with linear probing over an AtomicLongArray, slots are claimed by CAS.
+ * Zero marks an empty slot, so the key 0 is stored as EMPTY_KEY instead.
+ */
+class ConcurrentLongSet {
+    private static final long EMPTY_KEY = 0x9E3779B97F4A7C15L;
+
+    private final AtomicLongArray slots;
+    private final int mask;
+
+    // Keeps the table at most half full for the given number of keys.
+    ConcurrentLongSet(int maxKeys) {
+        int capacity = Integer.highestOneBit(Math.max(2, maxKeys - 1)) << 2;
+        this.slots = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * This set if it has room for maxKeys keys, otherwise a larger copy.
+     * Must not run concurrently with add.
+     */
+    ConcurrentLongSet withRoomFor(int maxKeys) {
+        if (2L * maxKeys <= mask + 1)
+            return this;
+        ConcurrentLongSet grown = new ConcurrentLongSet(maxKeys);
+        for (int i = 0; i <= mask; i++) {
+            long key = slots.get(i);
+            if (key != 0)
+                grown.add(key);
+        }
+        return grown;
+    }
+
+    /**
+     * Adds the key and returns true if it was not present yet.
+     * Throws IllegalStateException when the table is full.
+     */
+    boolean add(long key) {
+        if (key == 0)
+            key = EMPTY_KEY;
+        int index = (int) (key ^ (key >>> 32)) & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            long current = slots.get(index);
+            if (current == key)
+                return false;
+            if (current == 0) {
+                if (slots.compareAndSet(index, 0, key))
+                    return true;
+                if (slots.get(index) == key)
+                    return false;
+            }
+            index = (index + 1) & mask;
+        }
+        throw new IllegalStateException("Set of " + (mask + 1) + " slots is full");
+    }
+}
@@ -1,11 +1,22 @@
 package concurrentcube;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
+import java.util.function.Function;
 
-public class Cube {
+public class Cube implements AutoCloseable {
     private final int NUMBER_OF_SIDES = 6;
     private final int top = 0;
     private final int left = 1;
@@ -17,10 +28,10 @@ public class Cube {
     private final int TOP_BOTTOM_AXIS = -1;
     private final int FRONT_BACK_AXIS = -2;
     private final int LEFT_RIGHT_AXIS = -3;
-
+    private final int CHANGE_LOG_CAPACITY = 1024;
 
     private final int size;
-    private final int[][][] cube;
+    private final CubeKernels kernels;
 
     private final Semaphore[] layerSemaphore;
     private final Semaphore rotationsSemaphore;
@@ -32,63 +43,100 @@ public class Cube {
     private final Runnable afterShowing;
     private final AtomicInteger currentAxis;
     private final AtomicInteger begun;
+    // When set, afterRotation and afterShowing run on its thread after the
+    // permits are released instead of inside the critical section.
+    private volatile CallbackDispatcher dispatcher;
+    // Test hook run by every rotation and show right after it gets mainSemaphore,
+    // lets a test harness fix the order in which operations are admitted.
+    // Null unless given to the package-private constructor.
+    private final Runnable admissionProbe;
 
+    // Number of rotations applied so far. The change log is a ring buffer
+    // indexed by version, entry v - 1 describes the rotation that produced v.
+    private final AtomicLong version;
+    private final int[] changeLogSides;
+    private final int[] changeLogLayers;
+    private volatile RotationPublisher publisher;
+    private volatile WaitStrategy waitStrategy = WaitStrategy.BLOCKING;
+    private final SpinBudget admissionSpins = new SpinBudget();
+    private final SpinBudget drainSpins = new SpinBudget();
+    private final SpinBudget layerSpins = new SpinBudget();
+    private final SpinBudget slotSpins = new SpinBudget();
+    // Cap on rotations running at once, null when there is none.
+    private volatile RotationLimit rotationLimit;
+    // Callers queued for admission at which new ones are turned away, 0 for no bound.
+    private volatile int admissionQueueLimit = 0;
+    // layerSemaphore[g] guards layers g * layerGroupWidth .. (g + 1) * layerGroupWidth - 1.
+    private volatile int layerGroupWidth = 1;
+    // Frame between the sides callers see and the sides of the store, only
+    // replaced while holding mainSemaphore, see turnWholeCube.
+    private volatile Orientation orientation = Orientation.IDENTITY;
+    // Set by enableRegionScheduling, replaces the axis protocol.
+    private volatile RegionScheduler regions;
+    // Set by enablePriorityLanes, orders the way to mainSemaphore.
+    private volatile PriorityGate lanes;
+    // Set by enableUndo.
+    private volatile UndoLog history;
 
     public Cube(int size,
                 BiConsumer<Integer, Integer> beforeRotation,
                 BiConsumer<Integer, Integer> afterRotation,
                 Runnable beforeShowing,
                 Runnable afterShowing) {
+        this(new ArrayFaceletStore(size), beforeRotation, afterRotation, beforeShowing, afterShowing);
+    }
+
+    public Cube(FaceletStore store,
+                BiConsumer<Integer, Integer> beforeRotation,
+                BiConsumer<Integer, Integer> afterRotation,
+                Runnable beforeShowing,
+                Runnable afterShowing) {
+        this(store, beforeRotation, afterRotation, beforeShowing, afterShowing, null);
+    }
+
+    Cube(FaceletStore store,
+         BiConsumer<Integer, Integer> beforeRotation,
+         BiConsumer<Integer, Integer> afterRotation,
+         Runnable beforeShowing,
+         Runnable afterShowing,
+         Runnable admissionProbe) {
+        int size = store.size();
         this.currentAxis = new AtomicInteger(0);
         this.begun = new AtomicInteger(0);
+        this.version = new AtomicLong(0);
+        this.changeLogSides = new int[CHANGE_LOG_CAPACITY];
+        this.changeLogLayers = new int[CHANGE_LOG_CAPACITY];
         this.size = size;
         this.beforeRotation = beforeRotation;
         this.afterRotation = afterRotation;
         this.beforeShowing = beforeShowing;
         this.afterShowing = afterShowing;
+        this.admissionProbe = admissionProbe;
         this.layerSemaphore = new Semaphore[size];
         this.rotationsSemaphore = new Semaphore(0, true);
         this.mainSemaphore = new Semaphore(1, true);
         for (int i = 0; i < size; i++)
             layerSemaphore[i] = new Semaphore(1, true);
-        this.cube = new int[NUMBER_OF_SIDES][size][size];
-        for (int i = 0; i < NUMBER_OF_SIDES; i++) {
-            for (int j = 0; j < size; j++) {
-                for (int k = 0; k < size; k++) {
-                    cube[i][j][k] = i;
-                }
-            }
-        }
-    }
-
-    private int[] getVerticalRow(int side, int verticalLayer) {
-        int[] result = new int[size];
-        for (int i = 0; i < size; ++i) {
-            result[i] = cube[side][i][verticalLayer];
-        }
-        return result;
-    }
-
-    private int[] getVerticalRowReversed(int side, int verticalLayer) {
-        int[] result = new int[size];
-        for (int i = 0; i < size; ++i) {
-            result[i] = cube[side][size - 1 - i][verticalLayer];
-        }
-        return result;
+        this.kernels = new CubeKernels(store);
     }
 
     public void setVerticalRow(int side, int verticalLayer, int[] givenRow) {
         for (int i = 0; i < size; i++) {
-            cube[side][i][verticalLayer] = givenRow[i];
+            setFacelet(side, i, verticalLayer, givenRow[i]);
         }
     }
 
     public void setVerticalRowReversed(int side, int verticalLayer, int[] givenRow) {
         for (int i = 0; i < size; i++) {
-            cube[side][i][verticalLayer] = givenRow[size - 1 - i];
+            setFacelet(side, i, verticalLayer, givenRow[size - 1 - i]);
         }
     }
 
+    private void setFacelet(int side, int row, int column, int colour) {
+        Orientation frame = orientation;
+        kernels.set(frame.side(side), frame.row(side, row, column, size), frame.column(side, row, column, size), colour);
+    }
+
     public int getOppositeSide(int side) { // will probably be used in the concurrent part
         switch (side) {
             case top:
@@ -123,118 +171,113 @@ public class Cube {
         return size;
     }
 
-    private void rotateBottom(int layer) {
-        // i-th horizontal left->front->right->back->left
-        int[] tempLeft = cube[left][size - 1 - layer].clone();
-        int[] tempFront = cube[front][size - 1 - layer].clone();
-        int[] tempRight = cube[right][size - 1 - layer].clone();
-        int[] tempBack = cube[back][size - 1 - layer].clone();
-        cube[front][size - 1 - layer] = tempLeft; // left
-        cube[right][size - 1 - layer] = tempFront; // front
-        cube[back][size - 1 - layer] = tempRight; // right
-        cube[left][size - 1 - layer] = tempBack; // back
-    }
-
-    private void rotateTop(int layer) {
-        int[] tempLeft = cube[left][layer].clone();
-        int[] tempFront = cube[front][layer].clone();
-        int[] tempRight = cube[right][layer].clone();
-        int[] tempBack = cube[back][layer].clone();
-        cube[right][layer] = tempBack;
-        cube[front][layer] = tempRight;
-        cube[left][layer] = tempFront;
-        cube[back][layer] = tempLeft;
-    }
-
-    private void rotateFront(int layer) {
-        int[] tempTop = cube[top][size - 1 - layer].clone();
-        int[] tempRightVertical = getVerticalRowReversed(right, layer).clone();
-        int[] tempBottom = cube[bottom][layer].clone();
-        int[] tempLeftVertical = getVerticalRowReversed(left, size - 1 - layer);
-        setVerticalRow(right, layer, tempTop);
-        cube[bottom][layer] = tempRightVertical;
-        setVerticalRow(left, size - 1 - layer, tempBottom);
-        cube[top][size - 1 - layer] = tempLeftVertical;
-    }
-
-    private void rotateBack(int layer) {
-        int[] tempTop = cube[top][layer].clone();
-        int[] tempLeftVertical = getVerticalRow(left, layer);
-        int[] tempBottom = cube[bottom][size - 1 - layer].clone();
-        int[] tempRightVertical = getVerticalRow(right, size - 1 - layer);
-        setVerticalRowReversed(left, layer, tempTop);
-        cube[bottom][size - 1 - layer] = tempLeftVertical;
-        setVerticalRowReversed(right, size - 1 - layer, tempBottom);
-        cube[top][layer] = tempRightVertical;
-    }
-
-    private void rotateRight(int layer) {
-        int[] tempTopVertical = getVerticalRowReversed(top, size - 1 - layer);
-        int[] tempBackVertical = getVerticalRowReversed(back, layer);
-        int[] tempBottomVertical = getVerticalRow(bottom, size - 1 - layer);
-        int[] tempFrontVertical = getVerticalRow(front, size - 1 - layer);
-        setVerticalRow(back, layer, tempTopVertical);
-        setVerticalRow(bottom, size - 1 - layer, tempBackVertical);
-        setVerticalRow(front, size - 1 - layer, tempBottomVertical);
-        setVerticalRow(top, size - 1 - layer, tempFrontVertical);
-    }
-
-    private void rotateLeft(int layer) {
-        int[] tempTopVertical = getVerticalRow(top, layer);
-        int[] tempFrontVertical = getVerticalRow(front, layer);
-        int[] tempBottomVertical = getVerticalRowReversed(bottom, layer);
-        int[] tempBackVertical = getVerticalRowReversed(back, size - 1 - layer);
-        setVerticalRow(front, layer, tempTopVertical);
-        setVerticalRow(bottom, layer, tempFrontVertical);
-        setVerticalRow(back, size - 1 - layer, tempBottomVertical);
-        setVerticalRow(top, layer, tempBackVertical);
-    }
-
-    private void rotate90DegreesClockwise(int side) {
-        // layer was 0, so we rotate the side given to rotateSide
-        int[][] copiedRows = new int[size][size];
-        for (int i = 0; i < size; i++) {
-            copiedRows[i] = cube[side][i].clone();
-        }
-        for (int i = 0; i < size; i++) {
-            setVerticalRow(side, size - 1 - i, copiedRows[i]);
-        }
+    /**
+     * Selects how threads wait for admission, for rotations of another axis
+     * to drain and for their layer. ADAPTIVE pays off when rotations are
+     * short compared to parking a thread, as on small cubes. Can be changed
+     * at any time, waits that already started finish the old way.
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
     }
 
-    private void rotate90DegreesCounterclockwise(int side) {
-        int[][] copiedRows = new int[size][size];
-        for (int i = 0; i < size; i++) {
-            for (int j = 0; j < size; j++) {
-                copiedRows[i][size - 1 - j] = cube[side][i][j];
-            }
-        }
-        for (int i = 0; i < size; i++) {
-            setVerticalRow(side, i, copiedRows[i]);
+    // On a ForkJoinPool worker, e.g. one reading for CubeSnapshots, a wait goes
+    // through managedBlock so the pool can start a spare worker meanwhile.
+    private void acquire(Semaphore semaphore, int permits, SpinBudget budget) throws InterruptedException {
+        if (!ForkJoinTask.inForkJoinPool()) {
+            acquireBlocking(semaphore, permits, budget);
+            return;
         }
+        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+            private boolean acquired;
+
+            @Override
+            public boolean block() throws InterruptedException {
+                acquireBlocking(semaphore, permits, budget);
+                acquired = true;
+                return true;
+            }
+
+            // Free permits are taken without a spare worker, unless others queue for them.
+            @Override
+            public boolean isReleasable() {
+                if (!acquired)
+                    acquired = !semaphore.hasQueuedThreads() && semaphore.tryAcquire(permits);
+                return acquired;
+            }
+        });
     }
 
-    private void rotateAroundIfNeccessary(int side, int layer) {
-        if (layer == 0)
-            rotate90DegreesClockwise(side);
-        else if (layer == size - 1)
-            rotate90DegreesCounterclockwise(getOppositeSide(side));
+    private void acquireBlocking(Semaphore semaphore, int permits, SpinBudget budget) throws InterruptedException {
+        if (waitStrategy == WaitStrategy.ADAPTIVE)
+            budget.acquire(semaphore, permits);
+        else
+            semaphore.acquire(permits);
     }
 
     private void acquireMainSemaphore() throws InterruptedException {
+        acquireMainSemaphore(Priority.NORMAL);
+    }
+
+    private void acquireMainSemaphore(Priority priority) throws InterruptedException {
+        PriorityGate gate = lanes;
+        int queueLimit = admissionQueueLimit;
+        if (queueLimit > 0) {
+            int queued = mainSemaphore.getQueueLength() + (gate == null ? 0 : gate.queueLength());
+            if (queued >= queueLimit)
+                throw new RejectedExecutionException(queued + " operations already wait for admission");
+        }
+        if (gate == null) {
+            try {
+                acquire(mainSemaphore, 1, admissionSpins);
+            } catch (InterruptedException e) {
+                throw new InterruptedException();
+            }
+            return;
+        }
+        long start = System.nanoTime();
         try {
-            mainSemaphore.acquire();
+            gate.enter(priority);
+            try {
+                acquire(mainSemaphore, 1, admissionSpins);
+            } finally {
+                gate.leave();
+            }
         } catch (InterruptedException e) {
             throw new InterruptedException();
         }
+        gate.record(priority, System.nanoTime() - start);
+    }
+
+    /**
+     * Orders admissions by Priority: a HIGH rotation or show waits only for
+     * the admission in progress and earlier HIGH ones, ahead of every queued
+     * NORMAL operation, and so runs at the next axis change. After
+     * starvationLimit HIGH admissions in a row a waiting NORMAL one goes
+     * first. Must be called before the cube is shared with other threads.
+     */
+    public void enablePriorityLanes(int starvationLimit) {
+        lanes = new PriorityGate(starvationLimit);
+    }
+
+    // Upper bound in nanoseconds of the given fraction of admission waits of
+    // the class so far, 0 without priority lanes or samples.
+    public long getAdmissionLatency(Priority priority, double fraction) {
+        PriorityGate gate = lanes;
+        return gate == null ? 0 : LatencyHistogram.percentile(gate.latency(priority).snapshot(), fraction);
+    }
+
+    public long getAdmissionCount(Priority priority) {
+        PriorityGate gate = lanes;
+        return gate == null ? 0 : LatencyHistogram.count(gate.latency(priority).snapshot());
     }
 
 
     private void waitForCurrentAxisToStopSpinning(int side) throws InterruptedException {
         if (currentAxis.get() != getAxis(side)) {
             try {
-                rotationsSemaphore.acquire(begun.get());
+                acquire(rotationsSemaphore, begun.get(), drainSpins);
             } catch (InterruptedException e) {
-                e.printStackTrace();
                 throw new InterruptedException();
             }
             currentAxis.set(getAxis(side));
@@ -242,182 +285,879 @@ public class Cube {
         }
     }
 
-    private void endProtocol(int side, int layer, AtomicBoolean beforeAccepted) {
-        if (beforeAccepted.get()) {
+    private void endProtocol(int side, int layer, AtomicBoolean beforeAccepted, int[] groups, RotationLimit slot) {
+        CallbackDispatcher async = dispatcher;
+        if (beforeAccepted.get() && async == null) {
             afterRotation.accept(side, layer);
         }
-        layerSemaphore[layer].release();
-        rotationsSemaphore.release();
+        releaseLayers(groups, slot);
+        if (beforeAccepted.get() && async != null) {
+            async.publish(() -> afterRotation.accept(side, layer));
+        }
     }
 
-    private void entryProtocol(int side) throws InterruptedException {
+    // An interrupted thread leaves without holding or owing any permit.
+    // Returns the frame, which stays the same until the admitted operation
+    // is done, the axis it waits for is the one of the physical side.
+    private Orientation entryProtocol(int side, Priority priority) throws InterruptedException {
+        acquireMainSemaphore(priority);
+        Orientation frame = orientation;
         try {
-            acquireMainSemaphore();
-            waitForCurrentAxisToStopSpinning(side);
+            if (admissionProbe != null)
+                admissionProbe.run();
+            waitForCurrentAxisToStopSpinning(frame.side(side));
         } catch (InterruptedException e) {
-            throw new InterruptedException();
-        } finally {
-            begun.incrementAndGet();
             mainSemaphore.release();
+            throw new InterruptedException();
         }
+        begun.incrementAndGet();
+        mainSemaphore.release();
+        return frame;
     }
 
-    private void rotateTopWrapper(int side, int layer) throws InterruptedException {
-        AtomicBoolean beforeAccepted = new AtomicBoolean(false);
-        entryProtocol(side);
+    private int getLayerGroup(int layerIndex) {
+        return layerIndex / layerGroupWidth;
+    }
+
+    // Once admitted, the rotation owes a rotationsSemaphore permit even if it never runs.
+    private void acquireLayerSemaphore(int group) throws InterruptedException {
         try {
-            layerSemaphore[layer].acquire();
-            beforeRotation.accept(side, layer);
-            beforeAccepted.set(true);
-            if (!Thread.currentThread().isInterrupted()) {
-                rotateTop(layer);
-                rotateAroundIfNeccessary(side, layer);
-            }
+            acquire(layerSemaphore[group], 1, layerSpins);
         } catch (InterruptedException e) {
+            rotationsSemaphore.release();
             throw new InterruptedException();
-        } finally {
-            endProtocol(side, layer, beforeAccepted);
         }
     }
 
-    private void rotateBottomWrapper(int side, int layer) throws InterruptedException {
+    private int getLayerIndex(int side, int layer) {
+        switch (side) {
+            case top:
+            case front:
+            case left:
+                return layer;
+            default: // bottom || back || right
+                return size - 1 - layer;
+        }
+    }
+
+    public void rotate(int side, int layer) throws InterruptedException {
+        rotate(side, layer, Priority.NORMAL);
+    }
+
+    public void rotate(int side, int layer, Priority priority) throws InterruptedException {
+        if (side < top || side > bottom)
+            return;
+        if (regions != null) {
+            rotateInRegions(new int[]{side}, new int[]{layer}, priority);
+            return;
+        }
         AtomicBoolean beforeAccepted = new AtomicBoolean(false);
-        entryProtocol(side);
+        int physicalSide = entryProtocol(side, priority).side(side);
+        // The permit follows the layer of the store, the callbacks the one the
+        // caller sees, so they do not depend on how the cube has been turned.
+        int[] groups = {getLayerGroup(getLayerIndex(physicalSide, layer))};
+        RotationLimit slot = acquireLayers(groups);
         try {
-            layerSemaphore[size - 1 - layer].acquire();
             beforeRotation.accept(side, layer);
             beforeAccepted.set(true);
             if (!Thread.currentThread().isInterrupted()) {
-                rotateBottom(layer);
-                rotateAroundIfNeccessary(side, layer);
+                kernels.rotate(physicalSide, layer);
+                recordChange(side, layer);
             }
+        } finally {
+            endProtocol(side, getLayerIndex(side, layer), beforeAccepted, groups, slot);
+        }
+    }
+
+    // Takes the permits of the layer groups in increasing order, then a slot
+    // of the rotation limit, so only rotations that can run right away hold
+    // one. Returns the limit the slot came from, or null. If interrupted, gives
+    // back the permits it got and the rotationsSemaphore permit owed since admission.
+    private RotationLimit acquireLayers(int[] groups) throws InterruptedException {
+        int acquired = 0;
+        try {
+            for (; acquired < groups.length; acquired++)
+                acquire(layerSemaphore[groups[acquired]], 1, layerSpins);
+            RotationLimit slot = rotationLimit;
+            if (slot != null)
+                acquire(slot, 1, slotSpins);
+            return slot;
         } catch (InterruptedException e) {
+            for (int i = 0; i < acquired; i++)
+                layerSemaphore[groups[i]].release();
+            rotationsSemaphore.release();
             throw new InterruptedException();
-        } finally {
-            endProtocol(side, size - 1 - layer, beforeAccepted);
         }
     }
 
-    private void rotateFrontWrapper(int side, int layer) throws InterruptedException {
-        AtomicBoolean beforeAccepted = new AtomicBoolean(false);
-        entryProtocol(side);
+    private void releaseLayers(int[] groups, RotationLimit slot) {
+        if (slot != null)
+            slot.release();
+        for (int group : groups)
+            layerSemaphore[group].release();
+        rotationsSemaphore.release();
+    }
+
+    /**
+     * Caps the number of rotations running at once, 0 removes the cap. Only
+     * rotations that hold their layers wait for the cap, so a lower one
+     * trades latency for less contention on shared faces and caches on big
+     * cubes. Can be changed at any time: rotations in progress finish and
+     * new ones wait until fewer than the new limit are running. Does not
+     * apply with region scheduling.
+     */
+    public synchronized void setRotationLimit(int limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("Negative rotation limit " + limit);
+        // Once set, the same semaphore is resized, also to and from no cap,
+        // so it keeps counting the slots held by rotations in progress.
+        int permits = limit == 0 ? RotationLimit.UNLIMITED : limit;
+        if (rotationLimit == null) {
+            if (limit != 0)
+                rotationLimit = new RotationLimit(permits);
+        } else {
+            rotationLimit.setLimit(permits);
+        }
+    }
+
+    /**
+     * Turns a rotation or show away with RejectedExecutionException, before
+     * any callback, when limit operations already queue for admission; 0
+     * removes the bound. Sheds load instead of letting the queue, and with
+     * it the latency of every admission, grow without end. Applies with
+     * every WaitStrategy, an ADAPTIVE waiter counts once it parks. Can be
+     * changed at any time.
+     */
+    public void setAdmissionQueueLimit(int limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("Negative admission queue limit " + limit);
+        admissionQueueLimit = limit;
+    }
+
+    /**
+     * Lets a single permit guard width adjacent layers of an axis, so
+     * rotations of neighbouring layers, whose strips share cache lines on
+     * the faces across them, run one after another instead of side by side.
+     * Must be called before the cube is shared with other threads.
+     */
+    public void setLayerGroupWidth(int width) {
+        if (width < 1)
+            throw new IllegalArgumentException("Layer group width must be positive, got " + width);
+        layerGroupWidth = width;
+    }
+
+    /**
+     * Turns layers fromLayer to toLayer (both inclusive) of the side as one
+     * wide move: admitted once, with the layer permits taken in increasing
+     * order, the strips of all layers moved in a single pass and each face
+     * turned at most once. Callbacks and the change log see it as one
+     * rotation per layer, from fromLayer up, afterRotation with the layer
+     * index as in rotate. Turning all layers only
+     * changes the orientation frame, see turnWholeCube.
+     */
+    public void rotateRange(int side, int fromLayer, int toLayer) throws InterruptedException {
+        if (side < top || side > bottom)
+            return;
+        if (fromLayer < 0 || fromLayer > toLayer || toLayer >= size)
+            throw new IllegalArgumentException("Bad layer range " + fromLayer + ".." + toLayer);
+        if (fromLayer == 0 && toLayer == size - 1) {
+            turnWholeCube(side);
+            return;
+        }
+        int count = toLayer - fromLayer + 1;
+        if (regions != null) {
+            int[] sides = new int[count];
+            int[] layers = new int[count];
+            for (int i = 0; i < count; i++) {
+                sides[i] = side;
+                layers[i] = fromLayer + i;
+            }
+            rotateInRegions(sides, layers, Priority.NORMAL);
+            return;
+        }
+        int physicalSide = entryProtocol(side, Priority.NORMAL).side(side);
+        int first = Math.min(getLayerIndex(physicalSide, fromLayer), getLayerIndex(physicalSide, toLayer));
+        int firstGroup = getLayerGroup(first);
+        int[] groups = new int[getLayerGroup(first + count - 1) - firstGroup + 1];
+        for (int i = 0; i < groups.length; i++)
+            groups[i] = firstGroup + i;
+        RotationLimit slot = acquireLayers(groups);
+        int accepted = 0;
         try {
-            layerSemaphore[layer].acquire();
-            beforeRotation.accept(side, layer);
-            beforeAccepted.set(true);
+            for (; accepted < count; accepted++)
+                beforeRotation.accept(side, fromLayer + accepted);
             if (!Thread.currentThread().isInterrupted()) {
-                rotateFront(layer);
-                rotateAroundIfNeccessary(side, layer);
+                kernels.rotateRange(physicalSide, fromLayer, toLayer);
+                for (int layer = fromLayer; layer <= toLayer; layer++)
+                    recordChange(side, layer);
             }
-        } catch (InterruptedException e) {
-            throw new InterruptedException();
         } finally {
-            endProtocol(side, layer, beforeAccepted);
+            endRangeProtocol(side, fromLayer, accepted, groups, slot);
         }
     }
 
-    private void rotateBackWrapper(int side, int layer) throws InterruptedException {
-        AtomicBoolean beforeAccepted = new AtomicBoolean(false);
-        entryProtocol(side);
+    // endProtocol of a wide move: every layer from fromLayer on whose
+    // beforeRotation returned gets its afterRotation, also when a later
+    // one threw and the move was never applied.
+    private void endRangeProtocol(int side, int fromLayer, int accepted, int[] groups, RotationLimit slot) {
+        CallbackDispatcher async = dispatcher;
+        if (async == null) {
+            for (int i = 0; i < accepted; i++)
+                afterRotation.accept(side, getLayerIndex(side, fromLayer + i));
+        }
+        releaseLayers(groups, slot);
+        if (async != null) {
+            for (int i = 0; i < accepted; i++) {
+                int layerIndex = getLayerIndex(side, fromLayer + i);
+                async.publish(() -> afterRotation.accept(side, layerIndex));
+            }
+        }
+    }
+
+    /**
+     * Rotations of a single axis admitted at once: one entry into the axis
+     * phase, then the layers they use are taken in increasing order and held
+     * until all of them are done. Used by MoveProgram, callbacks and the
+     * change log still see every rotation, afterRotation with the layer
+     * index as in rotate.
+     */
+    void rotateAxisGroup(int[] sides, int[] layers) throws InterruptedException {
+        if (sides.length == 0)
+            return;
+        for (int side : sides) {
+            if (side < top || side > bottom || getAxis(side) != getAxis(sides[0]))
+                throw new IllegalArgumentException("Rotations of one axis expected, got side " + side);
+        }
+        if (regions != null) {
+            rotateInRegions(sides, layers, Priority.NORMAL);
+            return;
+        }
+        Orientation frame = entryProtocol(sides[0], Priority.NORMAL);
+        boolean[] used = new boolean[size];
+        int count = 0;
+        for (int i = 0; i < sides.length; i++) {
+            int group = getLayerGroup(getLayerIndex(frame.side(sides[i]), layers[i]));
+            if (!used[group]) {
+                used[group] = true;
+                count++;
+            }
+        }
+        int[] groups = new int[count];
+        count = 0;
+        for (int group = 0; group < size; group++) {
+            if (used[group])
+                groups[count++] = group;
+        }
+
+        RotationLimit slot = acquireLayers(groups);
+        CallbackDispatcher async = dispatcher;
+        int accepted = 0;
         try {
-            layerSemaphore[size - 1 - layer].acquire();
-            beforeRotation.accept(side, layer);
-            beforeAccepted.set(true);
-            if (!Thread.currentThread().isInterrupted()) {
-                rotateBack(layer);
-                rotateAroundIfNeccessary(side, layer);
+            for (; accepted < sides.length; accepted++) {
+                beforeRotation.accept(sides[accepted], layers[accepted]);
+                if (!Thread.currentThread().isInterrupted()) {
+                    kernels.rotate(frame.side(sides[accepted]), layers[accepted]);
+                    recordChange(sides[accepted], layers[accepted]);
+                }
+                if (async == null)
+                    afterRotation.accept(sides[accepted], getLayerIndex(sides[accepted], layers[accepted]));
             }
-        } catch (InterruptedException e) {
-            throw new InterruptedException();
         } finally {
-            endProtocol(side, size - 1 - layer, beforeAccepted);
+            releaseLayers(groups, slot);
+            if (async != null) {
+                for (int i = 0; i < accepted; i++) {
+                    int side = sides[i];
+                    int layerIndex = getLayerIndex(side, layers[i]);
+                    async.publish(() -> afterRotation.accept(side, layerIndex));
+                }
+            }
+        }
+    }
+
+    /**
+     * Switches the cube from the axis protocol to RegionScheduler with tiles
+     * of blockSize x blockSize facelets: rotations of different axes then
+     * only wait for each other where their strips cross, and the result is
+     * the one of running all operations one by one in admission order.
+     * Rotations are recorded when admitted, so an interrupt only cancels a
+     * rotation while it waits for admission. Must be called before the cube
+     * is shared with other threads.
+     */
+    public void enableRegionScheduling(int blockSize) {
+        regions = new RegionScheduler(kernels, blockSize);
+    }
+
+    // The rotations are admitted back to back, so no other operation can
+    // come between them in the order that the result is equivalent to.
+    private void rotateInRegions(int[] sides, int[] layers, Priority priority) throws InterruptedException {
+        RegionScheduler.RotationTicket[] tickets;
+        acquireMainSemaphore(priority);
+        try {
+            if (admissionProbe != null)
+                admissionProbe.run();
+            tickets = admitInRegions(sides, layers);
+            for (int i = 0; i < sides.length; i++)
+                recordChange(sides[i], layers[i]);
+        } finally {
+            mainSemaphore.release();
         }
+        applyInRegions(sides, layers, tickets);
     }
 
-    private void rotateLeftWrapper(int side, int layer) throws InterruptedException {
-        AtomicBoolean beforeAccepted = new AtomicBoolean(false);
-        entryProtocol(side);
+    // Must be called holding mainSemaphore.
+    private RegionScheduler.RotationTicket[] admitInRegions(int[] sides, int[] layers) {
+        RegionScheduler.RotationTicket[] tickets = new RegionScheduler.RotationTicket[sides.length];
+        Orientation frame = orientation;
+        for (int i = 0; i < sides.length; i++)
+            tickets[i] = regions.admit(frame.side(sides[i]), layers[i]);
+        return tickets;
+    }
+
+    // Admitted rotations must be applied even if a callback throws,
+    // later operations wait for them. afterRotation gets the layer index,
+    // the same as in the axis protocol.
+    private void applyInRegions(int[] sides, int[] layers, RegionScheduler.RotationTicket[] tickets) {
+        CallbackDispatcher async = dispatcher;
+        int next = 0;
         try {
-            layerSemaphore[layer].acquire();
-            beforeRotation.accept(side, layer);
-            beforeAccepted.set(true);
-            if (!Thread.currentThread().isInterrupted()) {
-                rotateLeft(layer);
-                rotateAroundIfNeccessary(side, layer);
+            while (next < sides.length) {
+                int side = sides[next];
+                int layer = layers[next];
+                int layerIndex = getLayerIndex(side, layer);
+                RegionScheduler.RotationTicket ticket = tickets[next++];
+                boolean beforeAccepted = false;
+                try {
+                    beforeRotation.accept(side, layer);
+                    beforeAccepted = true;
+                } finally {
+                    regions.rotate(ticket);
+                    if (beforeAccepted) {
+                        if (async == null)
+                            afterRotation.accept(side, layerIndex);
+                        else
+                            async.publish(() -> afterRotation.accept(side, layerIndex));
+                    }
+                }
             }
-        } catch (InterruptedException e) {
-            throw new InterruptedException();
         } finally {
-            endProtocol(side, layer, beforeAccepted);
+            while (next < sides.length)
+                regions.rotate(tickets[next++]);
         }
     }
 
-    private void rotateRightWrapper(int side, int layer) throws InterruptedException {
-        AtomicBoolean beforeAccepted = new AtomicBoolean(false);
-        entryProtocol(side);
+    // What a region read learns at admission.
+    private static class RegionRead {
+        RegionScheduler.Ticket ticket;
+        Orientation frame;
+        long version;
+        int[] logged;
+    }
+
+    // Admits a read of one side, or of all sides if side is -1, and waits until
+    // earlier operations are done with its tiles. Rotations admitted later keep
+    // writing the change log, so the part since the given version is copied first.
+    private RegionRead enterRegions(int side, long since, Priority priority) throws InterruptedException {
+        RegionRead read = new RegionRead();
+        acquireMainSemaphore(priority);
         try {
-            layerSemaphore[size - 1 - layer].acquire();
-            beforeRotation.accept(side, layer);
-            beforeAccepted.set(true);
-            if (!Thread.currentThread().isInterrupted()) {
-                rotateRight(layer);
-                rotateAroundIfNeccessary(side, layer);
+            if (admissionProbe != null)
+                admissionProbe.run();
+            read.frame = orientation;
+            read.ticket = regions.admit(side < 0 ? regions.allTiles() : regions.faceTiles(read.frame.side(side)));
+            read.version = version.get();
+            read.logged = loggedChanges(since, read.version);
+        } finally {
+            mainSemaphore.release();
+        }
+        regions.await(read.ticket);
+        return read;
+    }
+
+    private CubeChanges showInRegions(long since, Priority priority) throws InterruptedException {
+        RegionRead read = enterRegions(-1, since, priority);
+        CallbackDispatcher async = dispatcher;
+        CubeChanges result;
+        try {
+            beforeShowing.run();
+            result = changesSince(read.version, read.logged, read.frame);
+            if (async == null)
+                afterShowing.run();
+        } finally {
+            regions.release(read.ticket);
+        }
+        if (async != null)
+            async.publish(afterShowing);
+        return result;
+    }
+
+    /**
+     * Turns the whole cube in the direction of the side by replacing the
+     * orientation frame, no facelet moves. Callbacks and the change log see
+     * one rotation per layer, like any rotateRange. Without region scheduling
+     * rotations in progress finish first, as they were admitted with the old
+     * frame and the change log has to list them before this turn.
+     */
+    private void turnWholeCube(int side) throws InterruptedException {
+        CallbackDispatcher async = dispatcher;
+        int accepted = 0;
+        acquireMainSemaphore();
+        try {
+            if (admissionProbe != null)
+                admissionProbe.run();
+            if (regions == null) {
+                acquire(rotationsSemaphore, begun.get(), drainSpins);
+                begun.set(0);
+                currentAxis.set(SHOW_AXIS);
+            }
+            for (; accepted < size; accepted++)
+                beforeRotation.accept(side, accepted);
+            orientation = orientation.turned(side);
+            for (int layer = 0; layer < size; layer++)
+                recordChange(side, layer);
+            if (async == null) {
+                for (int layer = 0; layer < size; layer++)
+                    afterRotation.accept(side, getLayerIndex(side, layer));
             }
-        } catch (InterruptedException e) {
-            throw new InterruptedException();
         } finally {
-            endProtocol(side, size - 1 - layer, beforeAccepted);
+            mainSemaphore.release();
+        }
+        if (async != null) {
+            for (int layer = 0; layer < size; layer++) {
+                int layerIndex = getLayerIndex(side, layer);
+                async.publish(() -> afterRotation.accept(side, layerIndex));
+            }
         }
     }
 
-    public void rotate(int side, int layer) throws InterruptedException {
-        switch (side) {
-            case top:
-                rotateTopWrapper(side, layer);
-                break;
-            case bottom:
-                rotateBottomWrapper(side, layer);
-                break;
-            case front:
-                rotateFrontWrapper(side, layer);
-                break;
-            case back:
-                rotateBackWrapper(side, layer);
-                break;
-            case left:
-                rotateLeftWrapper(side, layer);
-                break;
-            case right:
-                rotateRightWrapper(side, layer);
-                break;
+    /**
+     * Keeps the last capacity rotations for undo and redo. Must be called
+     * before the cube is shared with other threads.
+     */
+    public void enableUndo(int capacity) {
+        history = new UndoLog(capacity, size);
+    }
+
+    /**
+     * Undoes the latest count rotations still in the undo log, newest first,
+     * each by a single rotation of the opposite side. Returns how many were
+     * undone. Callbacks and the change log see the undoing rotations like
+     * any other; a rotation that is not an undo or redo clears the redo stack.
+     */
+    public int undo(int count) throws InterruptedException {
+        return replayHistory(count, true);
+    }
+
+    // Applies the latest count undone rotations again, returns how many.
+    public int redo(int count) throws InterruptedException {
+        return replayHistory(count, false);
+    }
+
+    // The moves are taken off the log and applied in a single admission: with
+    // region scheduling like rotateInRegions, otherwise after the rotations
+    // in progress finish and while holding mainSemaphore, like turnWholeCube,
+    // so no other rotation comes between a move and its undo.
+    private int replayHistory(int count, boolean undo) throws InterruptedException {
+        UndoLog log = history;
+        if (log == null)
+            throw new IllegalStateException("Undo is not enabled");
+        if (count < 0)
+            throw new IllegalArgumentException("Negative count " + count);
+        CallbackDispatcher async = dispatcher;
+        int[] sides = null;
+        int[] layers = null;
+        RegionScheduler.RotationTicket[] tickets = null;
+        int accepted = 0;
+        acquireMainSemaphore();
+        try {
+            if (admissionProbe != null)
+                admissionProbe.run();
+            if (regions == null) {
+                acquire(rotationsSemaphore, begun.get(), drainSpins);
+                begun.set(0);
+                currentAxis.set(SHOW_AXIS);
+            }
+            if (regions != null) {
+                // Admitted rotations are always applied, see applyInRegions.
+                int[][] moves = undo ? log.takeUndo(count) : log.takeRedo(count);
+                sides = moves[0];
+                layers = moves[1];
+                tickets = admitInRegions(sides, layers);
+                for (int i = 0; i < sides.length; i++)
+                    logChange(sides[i], layers[i]);
+            } else {
+                // A move leaves its stack only once beforeRotation accepted it,
+                // so the stacks stay right if a callback throws.
+                sides = new int[count];
+                layers = new int[count];
+                Orientation frame = orientation;
+                for (; accepted < count; accepted++) {
+                    int[] move = undo ? log.peekUndo() : log.peekRedo();
+                    if (move == null)
+                        break;
+                    sides[accepted] = move[0];
+                    layers[accepted] = move[1];
+                    beforeRotation.accept(move[0], move[1]);
+                    if (undo)
+                        log.takeUndo(1);
+                    else
+                        log.takeRedo(1);
+                    kernels.rotate(frame.side(move[0]), move[1]);
+                    logChange(move[0], move[1]);
+                    if (async == null)
+                        afterRotation.accept(move[0], getLayerIndex(move[0], move[1]));
+                }
+            }
+        } finally {
+            mainSemaphore.release();
+            if (tickets == null && async != null) {
+                for (int i = 0; i < accepted; i++) {
+                    int side = sides[i];
+                    int layerIndex = getLayerIndex(side, layers[i]);
+                    async.publish(() -> afterRotation.accept(side, layerIndex));
+                }
+            }
         }
+        if (tickets == null)
+            return accepted;
+        applyInRegions(sides, layers, tickets);
+        return sides.length;
     }
 
-    public String show() throws InterruptedException {
+    private void enterShowPhase(Priority priority) throws InterruptedException {
+        acquireMainSemaphore(priority);
         try {
-            mainSemaphore.acquire();
+            if (admissionProbe != null)
+                admissionProbe.run();
             if (currentAxis.get() != SHOW_AXIS) {
-                rotationsSemaphore.acquire(begun.get());
+                acquire(rotationsSemaphore, begun.get(), drainSpins);
                 begun.set(0);
                 currentAxis.set(SHOW_AXIS);
             }
         } catch (InterruptedException e) {
+            mainSemaphore.release();
             throw new InterruptedException();
+        }
+        begun.incrementAndGet();
+        mainSemaphore.release();
+    }
+
+    private void endShowPhase() {
+        CallbackDispatcher async = dispatcher;
+        if (async == null) {
+            afterShowing.run();
+            rotationsSemaphore.release();
+        } else {
+            rotationsSemaphore.release();
+            async.publish(afterShowing);
+        }
+    }
+
+    /**
+     * From now on afterRotation and afterShowing are handed to a background
+     * thread once the rotation or show has released its permits, in batches
+     * and in publishing order. At most queueCapacity callbacks wait at a
+     * time, further rotations block until the listener catches up.
+     * beforeRotation and beforeShowing always run inline.
+     */
+    public synchronized void enableAsyncCallbacks(int queueCapacity) {
+        if (dispatcher == null)
+            dispatcher = new CallbackDispatcher(queueCapacity);
+    }
+
+    private void recordChange(int side, int layer) {
+        logChange(side, layer);
+        UndoLog log = history;
+        if (log != null)
+            log.record(side, layer);
+    }
+
+    // Like recordChange, but leaves the undo log alone.
+    private void logChange(int side, int layer) {
+        long applied = version.incrementAndGet();
+        int slot = (int) ((applied - 1) % CHANGE_LOG_CAPACITY);
+        changeLogSides[slot] = side;
+        changeLogLayers[slot] = layer;
+        RotationPublisher events = publisher;
+        if (events != null)
+            events.publish(new RotationEvent(applied, side, layer));
+    }
+
+    /**
+     * Stream of applied rotations in sequence order. Subscribers see the
+     * rotations applied after they subscribed and are served on the common
+     * fork-join pool, so the rotating threads only publish into a ring buffer.
+     */
+    public Flow.Publisher<RotationEvent> rotations() {
+        if (publisher == null) {
+            synchronized (this) {
+                if (publisher == null)
+                    publisher = new RotationPublisher(version::get, ForkJoinPool.commonPool());
+            }
+        }
+        return publisher;
+    }
+
+    private void markRotation(int side, int layer, boolean[][] rows, boolean[][] columns, boolean[] faces) {
+        for (int strip : kernels.strips(side, layer)) {
+            if (Strip.isVertical(strip))
+                columns[Strip.side(strip)][Strip.index(strip)] = true;
+            else
+                rows[Strip.side(strip)][Strip.index(strip)] = true;
+        }
+        int face = kernels.turnedFace(side, layer);
+        if (face >= 0)
+            faces[face] = true;
+    }
+
+    /**
+     * Keeps per-side colour counts and the state hash up to date with every
+     * rotation, so that isFaceUniform, isSolved and stateHash take O(1).
+     * Costs a pass over the moved strips per rotation and one over the face
+     * per face turn, unless the store is a TrackingFaceletStore and keeps
+     * them itself. Must be called before the cube is shared with other threads.
+     */
+    public void enableStateTracking() {
+        kernels.track();
+    }
+
+    /**
+     * Whether every facelet of the side has the same colour, without entering
+     * the show phase: O(1) from the colour counts after enableStateTracking,
+     * otherwise by reading the face. Exact whenever no rotation is in
+     * progress, otherwise the answer may reflect a rotation that is only
+     * partly done.
+     */
+    public boolean isFaceUniform(int side) {
+        return kernels.isFaceUniform(orientation.side(side));
+    }
+
+    // Whether all sides are uniform, with the same guarantees as isFaceUniform.
+    public boolean isSolved() {
+        return kernels.isSolved();
+    }
+
+    /**
+     * 64-bit Zobrist hash of the facelets. Cubes of the same size in the same
+     * state have the same hash. Read without entering the show phase, with
+     * the same guarantees as isFaceUniform. O(1) after enableStateTracking,
+     * also once the whole cube has been turned, otherwise computed from scratch.
+     */
+    public long stateHash() {
+        return orientation.logicalHash(kernels.stateHash());
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    public String show() throws InterruptedException {
+        return show(Priority.NORMAL);
+    }
+
+    public String show(Priority priority) throws InterruptedException {
+        if (regions != null)
+            return showInRegions(-1, priority).getSnapshot();
+        enterShowPhase(priority);
+        beforeShowing.run();
+        String result = kernels.snapshot(orientation);
+        endShowPhase();
+        return result;
+    }
+
+    private interface StateRead<E extends Exception> {
+        void read(Orientation frame) throws E;
+    }
+
+    // Runs the read in a show phase, or with every tile in region mode,
+    // bracketed by the show callbacks.
+    private <E extends Exception> void readState(StateRead<E> read) throws E, InterruptedException {
+        if (regions != null) {
+            RegionRead admitted = enterRegions(-1, -1, Priority.NORMAL);
+            CallbackDispatcher async = dispatcher;
+            try {
+                beforeShowing.run();
+                read.read(admitted.frame);
+                if (async == null)
+                    afterShowing.run();
+            } finally {
+                regions.release(admitted.ticket);
+            }
+            if (async != null)
+                async.publish(afterShowing);
+            return;
+        }
+        enterShowPhase(Priority.NORMAL);
+        try {
+            beforeShowing.run();
+            read.read(orientation);
         } finally {
-            begun.incrementAndGet();
-            mainSemaphore.release();
+            endShowPhase();
+        }
+    }
+
+    /**
+     * Writes the state in the format of CubeFormat, which CubeFormat.readFrom
+     * reads back. Admitted and bracketed by callbacks like show(), but the
+     * colours go to the channel in chunks instead of into one string.
+     */
+    public void writeTo(WritableByteChannel out) throws IOException, InterruptedException {
+        readState(frame -> CubeFormat.write(kernels.store(), frame, out));
+    }
+
+    // Like show(), with the characters put into dst from offset on through
+    // scratch, which must hold 6 * size * size bytes. Used by CubeSnapshots.
+    void showInto(ByteBuffer dst, int offset, byte[] scratch) throws InterruptedException {
+        readState(frame -> {
+            int faceletsPerSide = size * size;
+            for (int i = 0; i < NUMBER_OF_SIDES; i++)
+                frame.export(kernels.store(), i, scratch, i * faceletsPerSide);
+        });
+        int length = NUMBER_OF_SIDES * size * size;
+        for (int i = 0; i < length; i++)
+            scratch[i] += '0';
+        dst.put(offset, scratch, 0, length);
+    }
+
+    public void writeTo(OutputStream out) throws IOException, InterruptedException {
+        writeTo(Channels.newChannel(out));
+    }
+
+    // A face read is admitted like a rotation of the side's axis and holds the
+    // layer that turns the face, so rotations of the other layers of that axis
+    // keep running while only the other two axes wait. With region scheduling
+    // it waits only for the tiles of the face.
+    private <T> T readFace(int side, Function<Orientation, T> read) throws InterruptedException {
+        if (side < top || side > bottom)
+            throw new IllegalArgumentException("No side " + side);
+        if (regions != null) {
+            RegionRead admitted = enterRegions(side, -1, Priority.NORMAL);
+            try {
+                return read.apply(admitted.frame);
+            } finally {
+                regions.release(admitted.ticket);
+            }
         }
+        Orientation frame = entryProtocol(side, Priority.NORMAL);
+        int group = getLayerGroup(getLayerIndex(frame.side(side), 0));
+        acquireLayerSemaphore(group);
+        try {
+            return read.apply(frame);
+        } finally {
+            layerSemaphore[group].release();
+            rotationsSemaphore.release();
+        }
+    }
+
+    /**
+     * Colour of a single facelet. Like the other face reads it runs no
+     * callbacks and does not wait for rotations of the side's own axis
+     * that leave its face in place.
+     */
+    public int getFacelet(int side, int row, int column) throws InterruptedException {
+        return readFace(side, frame -> frame.get(kernels.store(), side, row, column));
+    }
+
+    public int[] getRow(int side, int row) throws InterruptedException {
+        return readFace(side, frame -> {
+            int[] result = new int[size];
+            for (int i = 0; i < size; i++)
+                result[i] = frame.get(kernels.store(), side, row, i);
+            return result;
+        });
+    }
+
+    public int[] getColumn(int side, int column) throws InterruptedException {
+        return readFace(side, frame -> {
+            int[] result = new int[size];
+            for (int i = 0; i < size; i++)
+                result[i] = frame.get(kernels.store(), side, i, column);
+            return result;
+        });
+    }
+
+    // Copies the colours of the side row by row into the first size * size bytes of dst.
+    public void copyFace(int side, byte[] dst) throws InterruptedException {
+        if (dst.length < size * size)
+            throw new IllegalArgumentException("Face of " + size * size + " facelets does not fit in " + dst.length);
+        readFace(side, frame -> {
+            frame.export(kernels.store(), side, dst, 0);
+            return null;
+        });
+    }
+
+    /**
+     * Returns facelets changed by rotations applied after the given version,
+     * or a full snapshot when the change log no longer reaches that far back.
+     */
+    public CubeChanges showChangesSince(long since) throws InterruptedException {
+        if (regions != null)
+            return showInRegions(since, Priority.NORMAL);
+        enterShowPhase(Priority.NORMAL);
         beforeShowing.run();
-        StringBuilder result = new StringBuilder();
+        long current = version.get();
+        CubeChanges result = changesSince(current, loggedChanges(since, current), orientation);
+        endShowPhase();
+        return result;
+    }
+
+    // Rotations that led from version since to current, each as side * size + layer,
+    // or null when the change log no longer reaches that far back.
+    private int[] loggedChanges(long since, long current) {
+        if (since < 0 || since > current || version.get() - since > CHANGE_LOG_CAPACITY)
+            return null;
+        int[] result = new int[(int) (current - since)];
+        for (long v = since; v < current; v++) {
+            int slot = (int) (v % CHANGE_LOG_CAPACITY);
+            result[(int) (v - since)] = changeLogSides[slot] * size + changeLogLayers[slot];
+        }
+        return result;
+    }
+
+    // Facelets moved by the logged rotations, or a full snapshot if there is no log,
+    // current must be the version of the facelets as they are now. The log and
+    // the result are in the sides callers see, mapped to the store by the frame.
+    private CubeChanges changesSince(long current, int[] logged, Orientation frame) {
+        if (logged == null)
+            return new CubeChanges(current, kernels.snapshot(frame));
+
+        boolean[][] rows = new boolean[NUMBER_OF_SIDES][size];
+        boolean[][] columns = new boolean[NUMBER_OF_SIDES][size];
+        boolean[] faces = new boolean[NUMBER_OF_SIDES];
+        for (int change : logged) {
+            markRotation(change / size, change % size, rows, columns, faces);
+        }
+
+        CubeChanges.Builder changes = new CubeChanges.Builder(current);
         for (int i = 0; i < NUMBER_OF_SIDES; i++) {
             for (int j = 0; j < size; j++) {
-                for (int k = 0; k < size; k++) {
-                    result.append(cube[i][j][k]);
+                if (faces[i] || rows[i][j]) {
+                    for (int k = 0; k < size; k++)
+                        changes.add(i, j * size + k, frame.get(kernels.store(), i, j, k));
+                }
+            }
+            if (faces[i])
+                continue;
+            for (int k = 0; k < size; k++) {
+                if (!columns[i][k])
+                    continue;
+                for (int j = 0; j < size; j++) {
+                    if (!rows[i][j])
+                        changes.add(i, j * size + k, frame.get(kernels.store(), i, j, k));
                 }
             }
         }
-        afterShowing.run();
-        rotationsSemaphore.release();
-        return result.toString();
+        return changes.build();
+    }
+
+    // Releases the facelet storage, the cube must not be used afterwards.
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (dispatcher != null) {
+                dispatcher.close();
+                dispatcher = null;
+            }
+        }
+        kernels.store().close();
     }
 }
@@ -0,0 +1,249 @@
+package concurrentcube;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+/**
+ * Simple timing harness for single-threaded rotation cost, followed by
+ * wide moves, contended rotations on small cubes under each WaitStrategy and the
+ * throughput of StateSearch and of bulk snapshots of many cubes.
+ * Usage: java concurrentcube.CubeBenchmark [size...]
+ * Large sizes need a big heap, 8192 takes about 1.6 GB (-Xmx2g). The flat
+ * store is also timed on the Vector API when it is available, see readME.txt.
+ */
+public class CubeBenchmark {
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+
+    private static Cube newCube(int size) {
+        return newCube(new ArrayFaceletStore(size));
+    }
+
+    private static Cube newCube(FaceletStore store) {
+        return new Cube(store,
+                (x, y) -> {
+                },
+                (x, y) -> {
+                },
+                () -> {
+                },
+                () -> {
+                }
+        );
+    }
+
+    // Outer layer turns: four strips plus a full face quarter-turn each.
+    private static long faceTurns(Cube cube, int turns) throws InterruptedException {
+        long start = System.nanoTime();
+        for (int i = 0; i < turns; i++) {
+            cube.rotate(i % 6, 0);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void benchmarkFaceTurns(int size) throws InterruptedException {
+        Cube cube = newCube(size);
+        int turns = Math.max(8, (int) (200_000_000L / ((long) size * size)));
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            faceTurns(cube, turns);
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            best = Math.min(best, faceTurns(cube, turns));
+        }
+        System.out.printf("face turn  N=%-6d %12.1f us/turn%n", size, best / 1000.0 / turns);
+    }
+
+    // Uniformly random moves, the same sequence for every store.
+    private static long randomMoves(Cube cube, int moves) throws InterruptedException {
+        Random random = new Random(moves);
+        long start = System.nanoTime();
+        for (int i = 0; i < moves; i++) {
+            cube.rotate(random.nextInt(6), random.nextInt(cube.getSize()));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void benchmarkStore(String name, IntFunction<FaceletStore> factory, int size)
+            throws InterruptedException {
+        try (Cube cube = newCube(factory.apply(size))) {
+            int moves = Math.max(100, 5_000_000 / size);
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                randomMoves(cube, moves);
+            }
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < MEASURED_ROUNDS; i++) {
+                best = Math.min(best, randomMoves(cube, moves));
+            }
+            System.out.printf("%-6s     N=%-6d %12.1f us/move%n", name, size, best / 1000.0 / moves);
+        }
+    }
+
+    private static long sequentialMoves(SequentialCube cube, int moves) {
+        Random random = new Random(moves);
+        long start = System.nanoTime();
+        for (int i = 0; i < moves; i++) {
+            cube.rotate(random.nextInt(6), random.nextInt(cube.getSize()));
+        }
+        return System.nanoTime() - start;
+    }
+
+    // Same moves as benchmarkStore on the default layout, without the concurrency protocol.
+    private static void benchmarkSequential(int size) {
+        try (SequentialCube cube = new SequentialCube(size)) {
+            int moves = Math.max(100, 5_000_000 / size);
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                sequentialMoves(cube, moves);
+            }
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < MEASURED_ROUNDS; i++) {
+                best = Math.min(best, sequentialMoves(cube, moves));
+            }
+            System.out.printf("%-10s N=%-6d %12.1f us/move%n", "sequential", size, best / 1000.0 / moves);
+        }
+    }
+
+    private static void benchmarkStores(int size) throws InterruptedException {
+        benchmarkStore("array", ArrayFaceletStore::new, size);
+        benchmarkStore("flat", n -> new FlatFaceletStore(n, false), size);
+        if (FlatFaceletStore.VECTOR)
+            benchmarkStore("vector", n -> new FlatFaceletStore(n, true), size);
+        benchmarkStore("direct", DirectFaceletStore::new, size);
+        benchmarkSequential(size);
+    }
+
+    // Half of the cube turned as one wide move and as one rotation per layer.
+    private static void benchmarkWideMoves(int size) throws InterruptedException {
+        Cube cube = newCube(size);
+        int moves = Math.max(4, 200_000 / size);
+        long wide = Long.MAX_VALUE;
+        long single = Long.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < moves; i++) {
+                cube.rotateRange(i % 6, 0, size / 2 - 1);
+            }
+            long middle = System.nanoTime();
+            for (int i = 0; i < moves; i++) {
+                for (int layer = 0; layer < size / 2; layer++)
+                    cube.rotate(i % 6, layer);
+            }
+            long end = System.nanoTime();
+            if (round >= WARMUP_ROUNDS) {
+                wide = Math.min(wide, middle - start);
+                single = Math.min(single, end - middle);
+            }
+        }
+        System.out.printf("wide move  N=%-6d %12.1f us/move, %12.1f us as single rotations%n",
+                size, wide / 1000.0 / moves, single / 1000.0 / moves);
+    }
+
+    // Rotations per second of threads that rotate random layers of a small
+    // cube at the same time, where waiting costs more than the rotations.
+    private static double contendedRotations(int size, int threads, WaitStrategy strategy)
+            throws InterruptedException {
+        Cube cube = newCube(size);
+        cube.setWaitStrategy(strategy);
+        int moves = 200_000;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                Random random = new Random();
+                try {
+                    for (int j = 0; j < moves; j++) {
+                        cube.rotate(random.nextInt(6), random.nextInt(size));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return (double) threads * moves / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static void benchmarkWaitStrategies(int size) throws InterruptedException {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        for (WaitStrategy strategy : WaitStrategy.values()) {
+            double best = 0;
+            for (int i = 0; i < WARMUP_ROUNDS + MEASURED_ROUNDS; i++) {
+                double rate = contendedRotations(size, threads, strategy);
+                if (i >= WARMUP_ROUNDS)
+                    best = Math.max(best, rate);
+            }
+            System.out.printf("%-10s N=%-6d %d threads %12.0f rotations/s%n",
+                    strategy.name().toLowerCase(), size, threads, best);
+        }
+    }
+
+    // Exhaustive breadth-first search: the target, every facelet of colour 0, is unreachable.
+    private static void benchmarkSearch(int size, int depth) {
+        String start = new SequentialCube(size).show();
+        String target = "0".repeat(start.length());
+        StateSearch search = new StateSearch(size);
+        long best = Long.MAX_VALUE;
+        long nodes = 0;
+        for (int i = 0; i < WARMUP_ROUNDS + MEASURED_ROUNDS; i++) {
+            long begin = System.nanoTime();
+            nodes = search.search(start, target, depth).getNodes();
+            if (i >= WARMUP_ROUNDS)
+                best = Math.min(best, System.nanoTime() - begin);
+        }
+        System.out.printf("search     N=%-6d depth %d %12.0f nodes/s%n", size, depth, nodes / (best / 1e9));
+    }
+
+    // One scrape of a fleet of small cubes, show() one by one against CubeSnapshots.
+    private static void benchmarkFleetShow(int cubes, int size) throws InterruptedException {
+        List<Cube> fleet = new ArrayList<>();
+        for (int i = 0; i < cubes; i++)
+            fleet.add(newCube(size));
+        CubeSnapshots snapshots = new CubeSnapshots();
+        long bestShow = Long.MAX_VALUE;
+        long bestBulk = Long.MAX_VALUE;
+        for (int i = 0; i < WARMUP_ROUNDS + MEASURED_ROUNDS; i++) {
+            long begin = System.nanoTime();
+            for (Cube cube : fleet)
+                cube.show();
+            long middle = System.nanoTime();
+            snapshots.snapshot(fleet);
+            long end = System.nanoTime();
+            if (i >= WARMUP_ROUNDS) {
+                bestShow = Math.min(bestShow, middle - begin);
+                bestBulk = Math.min(bestBulk, end - middle);
+            }
+        }
+        System.out.printf("fleet      N=%-6d %d cubes %10.1f us show() %10.1f us bulk%n",
+                size, cubes, bestShow / 1000.0, bestBulk / 1000.0);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int[] sizes = {512, 2048, 8192};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+        for (int size : sizes) {
+            benchmarkFaceTurns(size);
+        }
+        for (int size : sizes) {
+            benchmarkStores(size);
+        }
+        benchmarkWideMoves(8);
+        benchmarkWideMoves(64);
+        benchmarkWaitStrategies(3);
+        benchmarkWaitStrategies(10);
+        benchmarkSearch(2, 6);
+        benchmarkSearch(3, 4);
+        benchmarkFleetShow(5000, 3);
+        benchmarkFleetShow(500, 64);
+    }
+}
@@ -0,0 +1,91 @@
+package concurrentcube;
+
+import java.util.Arrays;
+
+/**
+ * Result of Cube.showChangesSince(version). Either a full snapshot in the
+ * format of show(), or a list of (side, index, colour) triples where index
+ * is row * size + column.
+ */
+public class CubeChanges {
+    private final long version;
+    private final String snapshot;
+    private final int[] sides;
+    private final int[] indices;
+    private final int[] colours;
+
+    CubeChanges(long version, String snapshot) {
+        this.version = version;
+        this.snapshot = snapshot;
+        this.sides = new int[0];
+        this.indices = new int[0];
+        this.colours = new int[0];
+    }
+
+    private CubeChanges(long version, int[] sides, int[] indices, int[] colours) {
+        this.version = version;
+        this.snapshot = null;
+        this.sides = sides;
+        this.indices = indices;
+        this.colours = colours;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isSnapshot() {
+        return snapshot != null;
+    }
+
+    public String getSnapshot() {
+        return snapshot;
+    }
+
+    public int getChangeCount() {
+        return sides.length;
+    }
+
+    public int getSide(int i) {
+        return sides[i];
+    }
+
+    public int getIndex(int i) {
+        return indices[i];
+    }
+
+    public int getColour(int i) {
+        return colours[i];
+    }
+
+    static class Builder {
+        private final long version;
+        private int count = 0;
+        private int[] sides = new int[16];
+        private int[] indices = new int[16];
+        private int[] colours = new int[16];
+
+        Builder(long version) {
+            this.version = version;
+        }
+
+        void add(int side, int index, int colour) {
+            if (count == sides.length) {
+                sides = Arrays.copyOf(sides, 2 * count);
+                indices = Arrays.copyOf(indices, 2 * count);
+                colours = Arrays.copyOf(colours, 2 * count);
+            }
+            sides[count] = side;
+            indices[count] = index;
+            colours[count] = colour;
+            count++;
+        }
+
+        CubeChanges build() {
+            return new CubeChanges(version,
+                    Arrays.copyOf(sides, count),
+                    Arrays.copyOf(indices, count),
+                    Arrays.copyOf(colours, count));
+        }
+    }
+}
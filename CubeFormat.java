@@ -0,0 +1,213 @@
+package concurrentcube;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.IntFunction;
+
+/**
+ * Binary format of a cube state, written by Cube.writeTo:
+ *   magic "CUBE", format version (1 byte), flags (1 byte), size (4 bytes),
+ * then the 6 * size * size colours in the order of Cube.show(), either
+ * packed 3 bits each, lowest bits first, or with the RUN_LENGTH flag as
+ * runs, each an unsigned LEB128 varint of length << 3 | colour. The writer
+ * takes whichever is shorter, runs win for cubes close to solved.
+ * Both directions go through a fixed-size buffer, so a state is never
+ * held in memory as a whole.
+ */
+public final class CubeFormat {
+    static final int MAGIC = 0x43554245;
+    static final int VERSION = 1;
+    static final int RUN_LENGTH = 1;
+    private static final int HEADER_BYTES = 10;
+    private static final int CHUNK_BYTES = 1 << 16;
+    private static final int COLOUR_BITS = 3;
+
+    private CubeFormat() {
+    }
+
+    private static void flush(ByteBuffer buffer, WritableByteChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            out.write(buffer);
+        buffer.clear();
+    }
+
+    private static int varintBytes(long value) {
+        int bytes = 1;
+        while ((value >>>= 7) != 0)
+            bytes++;
+        return bytes;
+    }
+
+    // Writes the state seen through the frame; the caller keeps rotations out.
+    // Rows go through one reused buffer, a first pass picks the encoding and
+    // sizes the output, the second writes it.
+    static void write(FaceletStore store, Orientation frame, WritableByteChannel out) throws IOException {
+        int size = store.size();
+        long facelets = (long) CubeKernels.NUMBER_OF_SIDES * size * size;
+        long packedBytes = (facelets * COLOUR_BITS + 7) / 8;
+        int[] row = new int[size];
+
+        long runBytes = 0;
+        long run = 0;
+        int previous = -1;
+        for (int i = 0; i < CubeKernels.NUMBER_OF_SIDES && runBytes < packedBytes; i++) {
+            for (int j = 0; j < size; j++) {
+                store.readStrip(frame.rowStrip(i, j, size), row);
+                for (int k = 0; k < size; k++) {
+                    int colour = row[k];
+                    if (colour != previous && run > 0) {
+                        runBytes += varintBytes(run << COLOUR_BITS);
+                        run = 0;
+                    }
+                    previous = colour;
+                    run++;
+                }
+            }
+        }
+        runBytes += varintBytes(run << COLOUR_BITS);
+        boolean runLength = runBytes < packedBytes;
+
+        long totalBytes = HEADER_BYTES + Math.min(runBytes, packedBytes);
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(CHUNK_BYTES, totalBytes));
+        buffer.putInt(MAGIC).put((byte) VERSION).put((byte) (runLength ? RUN_LENGTH : 0)).putInt(size);
+        long bits = 0;
+        int pending = 0;
+        run = 0;
+        previous = -1;
+        for (int i = 0; i < CubeKernels.NUMBER_OF_SIDES; i++) {
+            for (int j = 0; j < size; j++) {
+                store.readStrip(frame.rowStrip(i, j, size), row);
+                for (int k = 0; k < size; k++) {
+                    int colour = row[k];
+                    if (buffer.remaining() < 10)
+                        flush(buffer, out);
+                    if (!runLength) {
+                        bits |= (long) colour << pending;
+                        pending += COLOUR_BITS;
+                        if (pending >= 8) {
+                            buffer.put((byte) bits);
+                            bits >>>= 8;
+                            pending -= 8;
+                        }
+                    } else {
+                        if (colour != previous && run > 0) {
+                            putVarint(buffer, run << COLOUR_BITS | previous);
+                            run = 0;
+                        }
+                        previous = colour;
+                        run++;
+                    }
+                }
+            }
+        }
+        if (runLength)
+            putVarint(buffer, run << COLOUR_BITS | previous);
+        else if (pending > 0)
+            buffer.put((byte) bits);
+        flush(buffer, out);
+    }
+
+    private static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    // Makes sure at least count bytes are buffered, fails at the end of the stream.
+    private static void fill(ByteBuffer buffer, ReadableByteChannel in, int count) throws IOException {
+        if (buffer.remaining() >= count)
+            return;
+        buffer.compact();
+        while (buffer.position() < count) {
+            if (in.read(buffer) < 0)
+                throw new EOFException("Cube stream ends early");
+        }
+        buffer.flip();
+    }
+
+    private static long getVarint(ByteBuffer buffer, ReadableByteChannel in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            fill(buffer, in, 1);
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IOException("Malformed run in cube stream");
+    }
+
+    private static int checkColour(long colour) throws IOException {
+        if (colour >= CubeKernels.NUMBER_OF_SIDES)
+            throw new IOException("No colour " + colour + " in cube stream");
+        return (int) colour;
+    }
+
+    /**
+     * Reads a state written by Cube.writeTo into a store of its size made by
+     * the factory, e.g. FlatFaceletStore::new, which can then back a new Cube.
+     * Throws IOException if the stream is not a cube of this format. Reads
+     * ahead in chunks, so bytes after the state may be consumed as well.
+     */
+    public static FaceletStore readFrom(ReadableByteChannel in, IntFunction<FaceletStore> factory) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES);
+        buffer.flip();
+        fill(buffer, in, HEADER_BYTES);
+        if (buffer.getInt() != MAGIC)
+            throw new IOException("Not a cube stream");
+        int version = buffer.get();
+        if (version != VERSION)
+            throw new IOException("Unsupported cube format version " + version);
+        boolean runLength = (buffer.get() & RUN_LENGTH) != 0;
+        int size = buffer.getInt();
+        if (size < 1)
+            throw new IOException("Bad cube size " + size);
+
+        FaceletStore store = factory.apply(size);
+        long bits = 0;
+        int pending = 0;
+        long run = 0;
+        int colour = 0;
+        for (int i = 0; i < CubeKernels.NUMBER_OF_SIDES; i++) {
+            for (int j = 0; j < size; j++) {
+                for (int k = 0; k < size; k++) {
+                    if (runLength) {
+                        if (run == 0) {
+                            long value = getVarint(buffer, in);
+                            colour = checkColour(value & ((1 << COLOUR_BITS) - 1));
+                            run = value >>> COLOUR_BITS;
+                            if (run == 0)
+                                throw new IOException("Empty run in cube stream");
+                        }
+                        run--;
+                    } else {
+                        if (pending < COLOUR_BITS) {
+                            fill(buffer, in, 1);
+                            bits |= (long) (buffer.get() & 0xFF) << pending;
+                            pending += 8;
+                        }
+                        colour = checkColour(bits & ((1 << COLOUR_BITS) - 1));
+                        bits >>>= COLOUR_BITS;
+                        pending -= COLOUR_BITS;
+                    }
+                    store.set(i, j, k, colour);
+                }
+            }
+        }
+        if (run > 0)
+            throw new IOException("Run past the end of the cube");
+        return store;
+    }
+
+    public static FaceletStore readFrom(InputStream in, IntFunction<FaceletStore> factory) throws IOException {
+        return readFrom(Channels.newChannel(in), factory);
+    }
+}
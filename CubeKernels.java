@@ -0,0 +1,317 @@
+package concurrentcube;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rotation kernels shared by Cube and SequentialCube. They move facelets
+ * of a FaceletStore and know nothing about synchronization: callers make
+ * sure that rotations running at the same time touch disjoint strips.
+ */
+class CubeKernels {
+    static final int NUMBER_OF_SIDES = 6;
+    static final int TOP = 0;
+    static final int LEFT = 1;
+    static final int FRONT = 2;
+    static final int RIGHT = 3;
+    static final int BACK = 4;
+    static final int BOTTOM = 5;
+
+    private final int size;
+    private final FaceletStore store;
+    // Both kept up to date by every rotation once track has been called,
+    // null before. colourCounts[side * NUMBER_OF_SIDES + colour] is the number
+    // of facelets of that colour on that side.
+    private AtomicIntegerArray colourCounts;
+    // Zobrist hash: XOR of key(side, row, column, colour) over all facelets.
+    private AtomicLong stateHash;
+    // Set instead of the two above when the store keeps them, see TrackingFaceletStore.
+    private TrackingFaceletStore trackingStore;
+
+    CubeKernels(FaceletStore store) {
+        this.size = store.size();
+        this.store = store;
+    }
+
+    // Starts keeping the colour counts and the hash, must not run
+    // concurrently with rotations.
+    void track() {
+        if (stateHash != null || trackingStore != null)
+            return;
+        if (store instanceof TrackingFaceletStore) {
+            trackingStore = (TrackingFaceletStore) store;
+            trackingStore.track();
+            return;
+        }
+        AtomicIntegerArray counts = new AtomicIntegerArray(NUMBER_OF_SIDES * NUMBER_OF_SIDES);
+        byte[] face = new byte[size * size];
+        for (int i = 0; i < NUMBER_OF_SIDES; i++) {
+            store.export(i, face, 0);
+            for (byte colour : face)
+                counts.incrementAndGet(i * NUMBER_OF_SIDES + colour);
+        }
+        colourCounts = counts;
+        stateHash = new AtomicLong(computeHash());
+    }
+
+    long key(int side, int row, int column, int colour) {
+        return key(size, side, row, column, colour);
+    }
+
+    // Keys are derived from the position instead of a table, which for big
+    // cubes would be larger than the cube itself. They turn with the whole
+    // cube, see Orientation.key, so Cube can map the hash through its frame.
+    static long key(int size, int side, int row, int column, int colour) {
+        return Orientation.key(size, side, row, column, colour);
+    }
+
+    // Key of the k-th facelet of a strip.
+    private long key(int strip, int k, int colour) {
+        int position = Strip.isReversed(strip) ? size - 1 - k : k;
+        if (Strip.isVertical(strip))
+            return key(Strip.side(strip), position, Strip.index(strip), colour);
+        return key(Strip.side(strip), Strip.index(strip), position, colour);
+    }
+
+    int size() {
+        return size;
+    }
+
+    FaceletStore store() {
+        return store;
+    }
+
+    static int getOppositeSide(int side) {
+        switch (side) {
+            case TOP:
+                return BOTTOM;
+            case BOTTOM:
+                return TOP;
+            case LEFT:
+                return RIGHT;
+            case RIGHT:
+                return LEFT;
+            case FRONT:
+                return BACK;
+            default: // back
+                return FRONT;
+        }
+    }
+
+    /**
+     * The four strips moved by a rotation, contents of each one move to the
+     * next and the last one moves to the first.
+     */
+    int[] strips(int side, int layer) {
+        int i = size - 1 - layer;
+        switch (side) {
+            case TOP:
+                return new int[]{Strip.row(BACK, layer), Strip.row(RIGHT, layer),
+                        Strip.row(FRONT, layer), Strip.row(LEFT, layer)};
+            case BOTTOM:
+                // i-th horizontal left->front->right->back->left
+                return new int[]{Strip.row(LEFT, i), Strip.row(FRONT, i),
+                        Strip.row(RIGHT, i), Strip.row(BACK, i)};
+            case FRONT:
+                return new int[]{Strip.row(TOP, i), Strip.column(RIGHT, layer),
+                        Strip.reversed(Strip.row(BOTTOM, layer)), Strip.reversed(Strip.column(LEFT, i))};
+            case BACK:
+                return new int[]{Strip.row(TOP, layer), Strip.reversed(Strip.column(LEFT, layer)),
+                        Strip.reversed(Strip.row(BOTTOM, i)), Strip.column(RIGHT, i)};
+            case RIGHT:
+                return new int[]{Strip.column(TOP, i), Strip.reversed(Strip.column(BACK, layer)),
+                        Strip.column(BOTTOM, i), Strip.column(FRONT, i)};
+            default: // left
+                return new int[]{Strip.column(TOP, layer), Strip.column(FRONT, layer),
+                        Strip.column(BOTTOM, layer), Strip.reversed(Strip.column(BACK, i))};
+        }
+    }
+
+    // Side whose whole face turns with the given rotation, or -1.
+    int turnedFace(int side, int layer) {
+        if (layer == 0)
+            return side;
+        else if (layer == size - 1)
+            return getOppositeSide(side);
+        return -1;
+    }
+
+    // A rotation of the side moves its facelets the way turning the whole
+    // cube in the direction of the side would, and keys turn with the cube
+    // (see Orientation.key). So the keys of the moved facelets at their new
+    // places are the keys at their old places turned, and only the old ones
+    // need computing.
+    private static long turnedKeys(int side, long keys) {
+        return Orientation.turn(side).logicalHash(keys);
+    }
+
+    // Every strip hands its colours over to the next strip of its group, which
+    // updates the colour counts of both sides and the keys of the moved facelets.
+    // Whole strips are read at once, which a store may do in one go.
+    private void accountStripMoves(int side, int[][] groups, int from, int to) {
+        if (stateHash == null)
+            return;
+        int[] delta = new int[NUMBER_OF_SIDES * NUMBER_OF_SIDES];
+        long keys = 0;
+        int[] colours = from == 0 && to == size ? new int[size] : null;
+        for (int[] strips : groups) {
+            for (int i = 0; i < strips.length; i++) {
+                int source = Strip.side(strips[i]);
+                int target = Strip.side(strips[(i + 1) % strips.length]);
+                if (colours != null)
+                    store.readStrip(strips[i], colours);
+                for (int k = from; k < to; k++) {
+                    int colour = colours != null ? colours[k] : store.getInStrip(strips[i], k);
+                    delta[source * NUMBER_OF_SIDES + colour]--;
+                    delta[target * NUMBER_OF_SIDES + colour]++;
+                    keys ^= key(strips[i], k, colour);
+                }
+            }
+        }
+        for (int i = 0; i < delta.length; i++) {
+            if (delta[i] != 0)
+                colourCounts.addAndGet(i, delta[i]);
+        }
+        long hashDelta = keys ^ turnedKeys(side, keys);
+        stateHash.accumulateAndGet(hashDelta, (a, b) -> a ^ b);
+    }
+
+    // The face turned by a rotation of the given side, see accountStripMoves.
+    private void accountFaceTurn(int face, int side) {
+        if (stateHash == null)
+            return;
+        long keys = 0;
+        int[] row = new int[size];
+        for (int j = 0; j < size; j++) {
+            store.readStrip(Strip.row(face, j), row);
+            for (int k = 0; k < size; k++)
+                keys ^= key(face, j, k, row[k]);
+        }
+        long hashDelta = keys ^ turnedKeys(side, keys);
+        stateHash.accumulateAndGet(hashDelta, (a, b) -> a ^ b);
+    }
+
+    // O(1) when tracked, otherwise computed from the faces.
+    long stateHash() {
+        if (trackingStore != null)
+            return trackingStore.stateHash();
+        AtomicLong hash = stateHash;
+        return hash != null ? hash.get() : computeHash();
+    }
+
+    private long computeHash() {
+        long hash = 0;
+        byte[] face = new byte[size * size];
+        for (int i = 0; i < NUMBER_OF_SIDES; i++) {
+            store.export(i, face, 0);
+            for (int j = 0; j < size; j++) {
+                for (int k = 0; k < size; k++)
+                    hash ^= key(i, j, k, face[j * size + k]);
+            }
+        }
+        return hash;
+    }
+
+    // O(1) with tracked colours, otherwise reads the face.
+    boolean isFaceUniform(int side) {
+        if (trackingStore != null) {
+            for (int count : trackingStore.colourCounts(side)) {
+                if (count == size * size)
+                    return true;
+            }
+            return false;
+        }
+        AtomicIntegerArray counts = colourCounts;
+        if (counts == null) {
+            byte[] face = new byte[size * size];
+            store.export(side, face, 0);
+            for (byte colour : face) {
+                if (colour != face[0])
+                    return false;
+            }
+            return true;
+        }
+        for (int colour = 0; colour < NUMBER_OF_SIDES; colour++) {
+            if (counts.get(side * NUMBER_OF_SIDES + colour) == size * size)
+                return true;
+        }
+        return false;
+    }
+
+    boolean isSolved() {
+        for (int side = 0; side < NUMBER_OF_SIDES; side++) {
+            if (!isFaceUniform(side))
+                return false;
+        }
+        return true;
+    }
+
+    void set(int side, int row, int column, int colour) {
+        int previous = store.get(side, row, column);
+        store.set(side, row, column, colour);
+        if (stateHash != null) {
+            colourCounts.decrementAndGet(side * NUMBER_OF_SIDES + previous);
+            colourCounts.incrementAndGet(side * NUMBER_OF_SIDES + colour);
+            long hashDelta = key(side, row, column, previous) ^ key(side, row, column, colour);
+            stateHash.accumulateAndGet(hashDelta, (a, b) -> a ^ b);
+        }
+    }
+
+    void rotate(int side, int layer) {
+        int[] strips = strips(side, layer);
+        accountStripMoves(side, new int[][]{strips}, 0, size);
+        store.cycle(strips[0], strips[1], strips[2], strips[3]);
+        turnFace(side, layer);
+    }
+
+    // Layers from..to (inclusive) of the side as one operation: the strips of
+    // all layers in one pass and each face turned at most once.
+    void rotateRange(int side, int from, int to) {
+        int[][] groups = new int[to - from + 1][];
+        for (int layer = from; layer <= to; layer++)
+            groups[layer - from] = strips(side, layer);
+        accountStripMoves(side, groups, 0, size);
+        store.cycleAll(groups);
+        if (from == 0)
+            turnFace(side, 0);
+        if (to == size - 1 && size > 1)
+            turnFace(side, size - 1);
+    }
+
+    // Part of a rotation of the side: moves positions from (inclusive) to to
+    // (exclusive) of its strips.
+    void cycle(int side, int[] strips, int from, int to) {
+        accountStripMoves(side, new int[][]{strips}, from, to);
+        store.cycle(strips[0], strips[1], strips[2], strips[3], from, to);
+    }
+
+    // Part of a rotation: the face turn of an outer layer, nothing for inner ones.
+    void turnFace(int side, int layer) {
+        if (layer == 0) {
+            accountFaceTurn(side, side);
+            store.turnClockwise(side);
+        } else if (layer == size - 1) {
+            accountFaceTurn(getOppositeSide(side), side);
+            store.turnCounterclockwise(getOppositeSide(side));
+        }
+    }
+
+    // Current state in the format of Cube.show().
+    String snapshot() {
+        return snapshot(Orientation.IDENTITY);
+    }
+
+    // Current state as seen through the frame, in the format of Cube.show().
+    String snapshot(Orientation frame) {
+        int faceletsPerSide = size * size;
+        byte[] result = new byte[NUMBER_OF_SIDES * faceletsPerSide];
+        for (int i = 0; i < NUMBER_OF_SIDES; i++) {
+            frame.export(store, i, result, i * faceletsPerSide);
+        }
+        for (int i = 0; i < result.length; i++) {
+            result[i] += '0';
+        }
+        return new String(result, StandardCharsets.ISO_8859_1);
+    }
+}
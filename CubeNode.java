@@ -0,0 +1,245 @@
+package concurrentcube;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process holding some faces of a cube for RemoteFaceletStore. Listens on a
+ * loopback port and serves every connection on its own thread; requests are
+ * an opcode followed by int arguments, see the constants below. Strips are
+ * read and written in ranges, so a rotation only moves its strips over the
+ * wire, and face turns run here, next to the face. Once tracking, the node
+ * keeps the colour counts and the hash of its faces itself.
+ * Usage: java concurrentcube.CubeNode [port], port 0 (the default) picks a
+ * free one. Prints "listening on <port>" once it accepts connections.
+ */
+public class CubeNode {
+    // size, mask of the sides to hold; sets up solved faces, replies 0.
+    static final int INIT = 1;
+    // side, row, column; replies the colour.
+    static final int GET = 2;
+    // side, row, column, colour; replies 0.
+    static final int SET = 3;
+    // strip, from, to; replies the colours of positions from..to-1.
+    static final int READ = 4;
+    // strip, from, to, then the colours; replies 0.
+    static final int WRITE = 5;
+    // side, 1 for clockwise or 0; replies 0.
+    static final int TURN = 6;
+    // side; replies the colours of the face row by row.
+    static final int EXPORT = 7;
+    // Starts keeping colour counts and the hash of the held faces, replies 0.
+    static final int TRACK = 8;
+    // Replies the hash of the held faces as a long.
+    static final int HASH = 9;
+    // side; replies the number of facelets of each colour as ints.
+    static final int COUNTS = 10;
+
+    // Faces of the sides this node holds, null for the others.
+    private static class Faces implements TrackingFaceletStore {
+        private final int size;
+        private final byte[][] faces = new byte[NUMBER_OF_SIDES][];
+        // Updated by every set once tracked, strip writes and face turns
+        // included, as they are made of sets.
+        private boolean tracked = false;
+        private final AtomicLong hash = new AtomicLong(0);
+        private final AtomicIntegerArray counts = new AtomicIntegerArray(NUMBER_OF_SIDES * NUMBER_OF_SIDES);
+
+        Faces(int size, int sides) {
+            this.size = size;
+            for (int i = 0; i < NUMBER_OF_SIDES; i++) {
+                if ((sides & (1 << i)) == 0)
+                    continue;
+                faces[i] = new byte[size * size];
+                Arrays.fill(faces[i], (byte) i);
+            }
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public int get(int side, int row, int column) {
+            return faces[side][row * size + column];
+        }
+
+        @Override
+        public void set(int side, int row, int column, int colour) {
+            int previous = faces[side][row * size + column];
+            faces[side][row * size + column] = (byte) colour;
+            if (tracked) {
+                counts.decrementAndGet(side * NUMBER_OF_SIDES + previous);
+                counts.incrementAndGet(side * NUMBER_OF_SIDES + colour);
+                long delta = CubeKernels.key(size, side, row, column, previous)
+                        ^ CubeKernels.key(size, side, row, column, colour);
+                hash.accumulateAndGet(delta, (a, b) -> a ^ b);
+            }
+        }
+
+        @Override
+        public void track() {
+            if (tracked)
+                return;
+            long initial = 0;
+            for (int i = 0; i < NUMBER_OF_SIDES; i++) {
+                if (faces[i] == null)
+                    continue;
+                for (int j = 0; j < size * size; j++) {
+                    counts.incrementAndGet(i * NUMBER_OF_SIDES + faces[i][j]);
+                    initial ^= CubeKernels.key(size, i, j / size, j % size, faces[i][j]);
+                }
+            }
+            hash.set(initial);
+            tracked = true;
+        }
+
+        @Override
+        public long stateHash() {
+            return hash.get();
+        }
+
+        @Override
+        public int[] colourCounts(int side) {
+            int[] result = new int[NUMBER_OF_SIDES];
+            for (int colour = 0; colour < NUMBER_OF_SIDES; colour++)
+                result[colour] = counts.get(side * NUMBER_OF_SIDES + colour);
+            return result;
+        }
+
+        @Override
+        public void export(int side, byte[] dst, int offset) {
+            System.arraycopy(faces[side], 0, dst, offset, size * size);
+        }
+    }
+
+    private final ServerSocketChannel server;
+    private volatile Faces faces;
+    // Written at the end of every request and read at the start of the next,
+    // so a request sees the facelets left by requests answered before it on
+    // other connections.
+    private volatile int published = 0;
+
+    public CubeNode(int port) throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    public void serve() throws IOException {
+        while (true) {
+            SocketChannel channel = server.accept();
+            Thread thread = new Thread(() -> serve(channel), "cube-node-connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        try (channel) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            while (true) {
+                int op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                int seen = published;
+                handle(op, in, out);
+                published = seen + 1;
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("cube node: connection lost: " + e.getMessage());
+        }
+    }
+
+    private void handle(int op, DataInputStream in, DataOutputStream out) throws IOException {
+        if (op == INIT) {
+            int size = in.readInt();
+            faces = new Faces(size, in.readInt());
+            out.writeByte(0);
+            return;
+        }
+        Faces store = faces;
+        switch (op) {
+            case GET:
+                out.writeByte(store.get(in.readInt(), in.readInt(), in.readInt()));
+                break;
+            case SET:
+                store.set(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+                out.writeByte(0);
+                break;
+            case READ: {
+                int strip = in.readInt();
+                int from = in.readInt();
+                int to = in.readInt();
+                for (int k = from; k < to; k++)
+                    out.writeByte(store.getInStrip(strip, k));
+                break;
+            }
+            case WRITE: {
+                int strip = in.readInt();
+                int from = in.readInt();
+                int to = in.readInt();
+                for (int k = from; k < to; k++)
+                    store.setInStrip(strip, k, in.readByte());
+                out.writeByte(0);
+                break;
+            }
+            case TURN: {
+                int side = in.readInt();
+                if (in.readInt() != 0)
+                    store.turnClockwise(side);
+                else
+                    store.turnCounterclockwise(side);
+                out.writeByte(0);
+                break;
+            }
+            case EXPORT: {
+                byte[] face = new byte[store.size() * store.size()];
+                store.export(in.readInt(), face, 0);
+                out.write(face);
+                break;
+            }
+            case TRACK:
+                store.track();
+                out.writeByte(0);
+                break;
+            case HASH:
+                out.writeLong(store.stateHash());
+                break;
+            case COUNTS:
+                for (int count : store.colourCounts(in.readInt()))
+                    out.writeInt(count);
+                break;
+            default:
+                throw new IOException("Unknown request " + op);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        CubeNode node = new CubeNode(args.length > 0 ? Integer.parseInt(args[0]) : 0);
+        System.out.println("listening on " + node.getPort());
+        System.out.flush();
+        node.serve();
+    }
+}
@@ -0,0 +1,115 @@
+package concurrentcube;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Bulk show() over many cubes for monitoring. Every cube is read in its own
+ * show phase, as show() would, but the reads run in parallel on a
+ * ForkJoinPool and write their characters straight into one direct buffer
+ * that is kept and reused by the next snapshot, so a scrape allocates no
+ * strings. The cubes are not read at one common moment, each one is
+ * consistent on its own.
+ */
+public class CubeSnapshots {
+    // A fork-join leaf reads at most CUBES_PER_LEAF cubes and, unless it is a
+    // single cube, at most FACELETS_PER_LEAF facelets. Every cube may wait for
+    // its own admission, so small leaves let other workers read around it.
+    private static final int CUBES_PER_LEAF = 4;
+    private static final long FACELETS_PER_LEAF = 1 << 16;
+
+    private final ForkJoinPool pool;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(0);
+    private int[] offsets = new int[1];
+
+    public CubeSnapshots() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public CubeSnapshots(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    @SuppressWarnings("serial") // never serialized
+    private class Snapshot extends RecursiveAction {
+        private final List<Cube> cubes;
+        private final int from;
+        private final int to;
+
+        Snapshot(List<Cube> cubes, int from, int to) {
+            this.cubes = cubes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > CUBES_PER_LEAF || to - from > 1 && offsets[to] - offsets[from] > FACELETS_PER_LEAF) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Snapshot(cubes, from, middle), new Snapshot(cubes, middle, to));
+                return;
+            }
+            byte[] scratch = new byte[0];
+            try {
+                for (int i = from; i < to; i++) {
+                    Cube cube = cubes.get(i);
+                    int length = offsets[i + 1] - offsets[i];
+                    if (scratch.length < length)
+                        scratch = new byte[length];
+                    cube.showInto(buffer, offsets[i], scratch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while taking a snapshot", e);
+            }
+        }
+    }
+
+    /**
+     * Reads all cubes and returns a read-only view of the shared buffer:
+     * cube i in the format of show() at offset(i) .. offset(i + 1) - 1.
+     * The view and the offsets stay valid until the next call.
+     */
+    public synchronized ByteBuffer snapshot(List<Cube> cubes) throws InterruptedException {
+        int[] newOffsets = new int[cubes.size() + 1];
+        long total = 0;
+        for (int i = 0; i < cubes.size(); i++) {
+            newOffsets[i] = (int) total;
+            int size = cubes.get(i).getSize();
+            total += (long) CubeKernels.NUMBER_OF_SIDES * size * size;
+            if (total > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Snapshots of " + (i + 1) + " cubes do not fit in a buffer");
+        }
+        newOffsets[cubes.size()] = (int) total;
+        offsets = newOffsets;
+        if (buffer.capacity() < total)
+            buffer = ByteBuffer.allocateDirect((int) Math.max(total, Math.min(2L * buffer.capacity(), Integer.MAX_VALUE)));
+        try {
+            if (!cubes.isEmpty())
+                pool.invoke(new Snapshot(cubes, 0, cubes.size()));
+        } catch (IllegalStateException e) {
+            // The pool may rethrow a copy of the leaf's exception, wrapping the original.
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof InterruptedException)
+                    throw new InterruptedException();
+            }
+            throw e;
+        }
+        return buffer.asReadOnlyBuffer().position(0).limit((int) total);
+    }
+
+    // Offset of cube i in the last snapshot, offset(count) is its length.
+    public synchronized int offset(int i) {
+        return offsets[i];
+    }
+
+    // Cube i of the last snapshot as show() would return it.
+    public synchronized String show(int i) {
+        byte[] result = new byte[offsets[i + 1] - offsets[i]];
+        buffer.get(offsets[i], result);
+        return new String(result, StandardCharsets.ISO_8859_1);
+    }
+}
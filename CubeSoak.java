@@ -0,0 +1,265 @@
+package concurrentcube;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long running randomized stress test for Cube, reporting throughput and
+ * latency while it checks invariants:
+ * - every show() holds each colour exactly size * size times,
+ * - at every report a snapshot equals a sequential replay of the rotations
+ *   published by Cube.rotations() up to the snapshot's version.
+ * Usage: java concurrentcube.CubeSoak [key=value...], keys and defaults:
+ *   size=10 threads=16 seconds=60 axes=1,1,1 show=0.01 interrupts=0 report=5 blocks=0
+ * axes are relative weights of the top-bottom, left-right and front-back
+ * axis, show is the fraction of operations that are show() calls,
+ * interrupts is the number of worker interrupts per second and a positive
+ * blocks switches the cube to region scheduling with tiles of that size.
+ * Exits with status 1 as soon as an invariant is broken.
+ */
+public class CubeSoak {
+    private final int size;
+    private final int threads;
+    private final long seconds;
+    private final double[] axisWeights;
+    private final double showRatio;
+    private final double interruptsPerSecond;
+    private final long reportSeconds;
+
+    private final Cube cube;
+    private final SequentialCube replay;
+    private final ConcurrentLinkedQueue<RotationEvent> journal = new ConcurrentLinkedQueue<>();
+    private final LatencyHistogram rotationLatency = new LatencyHistogram();
+    private final LatencyHistogram showLatency = new LatencyHistogram();
+    private final AtomicLong interrupted = new AtomicLong(0);
+    private volatile boolean journalBroken = false;
+    private volatile String failure = null;
+    private long replayed = 0;
+
+    CubeSoak(int size, int threads, long seconds, double[] axisWeights, double showRatio,
+             double interruptsPerSecond, long reportSeconds, int blockSize) {
+        this.size = size;
+        this.threads = threads;
+        this.seconds = seconds;
+        this.axisWeights = axisWeights;
+        this.showRatio = showRatio;
+        this.interruptsPerSecond = interruptsPerSecond;
+        this.reportSeconds = reportSeconds;
+        this.cube = newCube(size);
+        if (blockSize > 0)
+            cube.enableRegionScheduling(blockSize);
+        this.replay = new SequentialCube(size);
+    }
+
+    private static Cube newCube(int size) {
+        return new Cube(size,
+                (x, y) -> {
+                },
+                (x, y) -> {
+                },
+                () -> {
+                },
+                () -> {
+                }
+        );
+    }
+
+    private void fail(String message) {
+        if (failure == null)
+            failure = message;
+    }
+
+    private void checkColours(String shown) {
+        int[] colours = new int[6];
+        for (int i = 0; i < shown.length(); i++) {
+            colours[shown.charAt(i) - '0']++;
+        }
+        for (int i = 0; i < 6; i++) {
+            if (colours[i] != size * size)
+                fail("colour " + i + " appears " + colours[i] + " times in " + shown);
+        }
+    }
+
+    // Sides of the top-bottom, left-right and front-back axis.
+    private static final int[][] AXIS_SIDES = {{0, 5}, {1, 3}, {2, 4}};
+
+    private int pickAxis(Random random) {
+        double total = axisWeights[0] + axisWeights[1] + axisWeights[2];
+        double point = random.nextDouble() * total;
+        for (int i = 0; i < 2; i++) {
+            if (point < axisWeights[i])
+                return i;
+            point -= axisWeights[i];
+        }
+        return 2;
+    }
+
+    private void work(long deadline) {
+        Random random = new Random();
+        while (System.nanoTime() < deadline && failure == null) {
+            // An interrupt that arrived between operations would silently skip the next rotation.
+            Thread.interrupted();
+            try {
+                long start = System.nanoTime();
+                if (random.nextDouble() < showRatio) {
+                    String shown = cube.show();
+                    showLatency.record(System.nanoTime() - start);
+                    checkColours(shown);
+                } else {
+                    int side = AXIS_SIDES[pickAxis(random)][random.nextInt(2)];
+                    cube.rotate(side, random.nextInt(size));
+                    rotationLatency.record(System.nanoTime() - start);
+                }
+            } catch (InterruptedException e) {
+                interrupted.incrementAndGet();
+            }
+        }
+    }
+
+    private void subscribeJournal() {
+        cube.rotations().subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(RotationEvent item) {
+                journal.add(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                System.out.println("journal lost, replay checks disabled: " + throwable.getMessage());
+                journalBroken = true;
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+    }
+
+    // Replays the journal up to a consistent snapshot and compares the two.
+    private void checkReplay() throws InterruptedException {
+        CubeChanges snapshot = cube.showChangesSince(-1);
+        checkColours(snapshot.getSnapshot());
+        while (replayed < snapshot.getVersion() && !journalBroken) {
+            RotationEvent event = journal.poll();
+            if (event == null) {
+                Thread.sleep(1);
+                continue;
+            }
+            if (event.getSequence() != replayed + 1)
+                fail("journal skipped from " + replayed + " to " + event.getSequence());
+            replay.rotate(event.getSide(), event.getLayer());
+            replayed = event.getSequence();
+        }
+        if (!journalBroken && !replay.show().equals(snapshot.getSnapshot()))
+            fail("replay of " + replayed + " rotations differs from the cube");
+    }
+
+    private void report(long elapsedNanos, long[] rotations, long[] shows) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("rotations %10.0f/s  p50 %8d  p99 %8d  p99.9 %9d ns | shows %8.0f/s  p99 %9d ns"
+                        + " | interrupted %d%n",
+                LatencyHistogram.count(rotations) / seconds,
+                LatencyHistogram.percentile(rotations, 0.5),
+                LatencyHistogram.percentile(rotations, 0.99),
+                LatencyHistogram.percentile(rotations, 0.999),
+                LatencyHistogram.count(shows) / seconds,
+                LatencyHistogram.percentile(shows, 0.99),
+                interrupted.get());
+    }
+
+    boolean run() throws InterruptedException {
+        subscribeJournal();
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1_000_000_000L;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> work(deadline), "soak-" + i);
+            workers[i].start();
+        }
+        Thread interrupter = new Thread(() -> {
+            Random random = new Random();
+            long pause = interruptsPerSecond > 0 ? (long) (1e9 / interruptsPerSecond) : Long.MAX_VALUE;
+            while (System.nanoTime() + pause < deadline && failure == null) {
+                try {
+                    Thread.sleep(pause / 1_000_000, (int) (pause % 1_000_000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                workers[random.nextInt(threads)].interrupt();
+            }
+        });
+        interrupter.setDaemon(true);
+        interrupter.start();
+
+        long last = start;
+        while (System.nanoTime() < deadline && failure == null) {
+            Thread.sleep(Math.min(reportSeconds * 1000, Math.max(1, (deadline - System.nanoTime()) / 1_000_000)));
+            long now = System.nanoTime();
+            report(now - last, rotationLatency.drain(), showLatency.drain());
+            last = now;
+            checkReplay();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        checkReplay();
+        System.out.println(failure == null
+                ? "OK, " + cube.getVersion() + " rotations"
+                : "FAILED: " + failure);
+        return failure == null;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int size = 10;
+        int threads = 16;
+        long seconds = 60;
+        double[] axes = {1, 1, 1};
+        double show = 0.01;
+        double interrupts = 0;
+        long report = 5;
+        int blocks = 0;
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            switch (pair[0]) {
+                case "size":
+                    size = Integer.parseInt(pair[1]);
+                    break;
+                case "threads":
+                    threads = Integer.parseInt(pair[1]);
+                    break;
+                case "seconds":
+                    seconds = Long.parseLong(pair[1]);
+                    break;
+                case "axes":
+                    String[] weights = pair[1].split(",");
+                    for (int i = 0; i < 3; i++)
+                        axes[i] = Double.parseDouble(weights[i]);
+                    break;
+                case "show":
+                    show = Double.parseDouble(pair[1]);
+                    break;
+                case "interrupts":
+                    interrupts = Double.parseDouble(pair[1]);
+                    break;
+                case "report":
+                    report = Long.parseLong(pair[1]);
+                    break;
+                case "blocks":
+                    blocks = Integer.parseInt(pair[1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        CubeSoak soak = new CubeSoak(size, threads, seconds, axes, show, interrupts, report, blocks);
+        if (!soak.run())
+            System.exit(1);
+    }
+}
@@ -3,8 +3,23 @@ package concurrentcube;
 
 import org.junit.jupiter.api.*;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -945,4 +960,1802 @@ public class CubeTest {
             thread.interrupt();
         }
     }
+
+    @Test
+    @Tag("correctness")
+    @DisplayName("Checks whether changes reported since a version turn an old snapshot into the current one.")
+    public void Test13() {
+        Cube cube = new Cube(6,
+                (x, y) -> {
+                },
+                (x, y) -> {
+                },
+                () -> {},
+                () -> {}
+        );
+        Random random = new Random();
+        try {
+            String start = cube.show();
+            long version = cube.getVersion();
+            for (int i = 0; i < 30; i++) {
+                cube.rotate(random.nextInt(6), random.nextInt(6));
+            }
+            CubeChanges changes = cube.showChangesSince(version);
+            Assertions.assertFalse(changes.isSnapshot());
+            Assertions.assertEquals(version + 30, changes.getVersion());
+            char[] patched = start.toCharArray();
+            for (int i = 0; i < changes.getChangeCount(); i++) {
+                patched[changes.getSide(i) * 36 + changes.getIndex(i)] = (char) ('0' + changes.getColour(i));
+            }
+            Assertions.assertEquals(cube.show(), new String(patched));
+
+            for (int i = 0; i < 2000; i++) {
+                cube.rotate(random.nextInt(6), random.nextInt(6));
+            }
+            changes = cube.showChangesSince(version);
+            Assertions.assertTrue(changes.isSnapshot());
+            Assertions.assertEquals(cube.show(), changes.getSnapshot());
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    @Tag("correctness")
+    @DisplayName("Checks whether a cube kept off-heap rotates exactly like the default one.")
+    public void Test14() {
+        Cube cube = new Cube(5,
+                (x, y) -> {
+                },
+                (x, y) -> {
+                },
+                () -> {},
+                () -> {}
+        );
+        Cube offHeap = new Cube(new DirectFaceletStore(5),
+                (x, y) -> {
+                },
+                (x, y) -> {
+                },
+                () -> {},
+                () -> {}
+        );
+        Random random = new Random();
+        try {
+            for (int i = 0; i < 500; i++) {
+                int side = random.nextInt(6);
+                int layer = random.nextInt(5);
+                cube.rotate(side, layer);
+                offHeap.rotate(side, layer);
+            }
+            Assertions.assertEquals(cube.show(), offHeap.show());
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            offHeap.close();
+        }
+    }
+
+    @Test
+    @Tag("correctness")
+    @DisplayName("Checks whether asynchronous after-callbacks are all delivered off the rotating thread.")
+    public void Test15() {
+        AtomicInteger delivered = new AtomicInteger(0);
+        AtomicInteger inline = new AtomicInteger(0);
+        Thread main = Thread.currentThread();
+        Cube cube = new Cube(4,
+                (x, y) -> {
+                },
+                (x, y) -> {
+                    delivered.incrementAndGet();
+                    if (Thread.currentThread() == main)
+                        inline.incrementAndGet();
+                },
+                () -> {},
+                () -> {}
+        );
+        cube.enableAsyncCallbacks(8);
+        try {
+            for (int i = 0; i < 100; i++) {
+                cube.rotate(i % 6, i % 4);
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        cube.close();
+        Assertions.assertEquals(100, delivered.get());
+        Assertions.assertEquals(0, inline.get());
+
+        // A throwing listener is reported and the worker keeps going; closing
+        // lets the callback that is running finish without an interrupt.
+        AtomicInteger reported = new AtomicInteger(0);
+        AtomicInteger interrupted = new AtomicInteger(0);
+        Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((thread, e) -> reported.incrementAndGet());
+        delivered.set(0);
+        Cube failing = new Cube(4,
+                (x, y) -> {
+                },
+                (x, y) -> {
+                    if (delivered.incrementAndGet() % 2 == 0)
+                        throw new IllegalStateException("listener failure");
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        interrupted.incrementAndGet();
+                    }
+                },
+                () -> {},
+                () -> {}
+        );
+        failing.enableAsyncCallbacks(2);
+        try {
+            for (int i = 0; i < 20; i++) {
+                failing.rotate(i % 6, i % 4);
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            failing.close();
+            Thread.setDefaultUncaughtExceptionHandler(handler);
+        }
+        Assertions.assertEquals(20, delivered.get());
+        Assertions.assertEquals(10, reported.get());
+        Assertions.assertEquals(0, interrupted.get());
+    }
+
+    @Test
+    @Tag("correctness")
+    @DisplayName("Checks whether the rotation stream delivers every rotation in an order that replays to the same cube.")
+    public void Test16() {
+        Cube cube = new Cube(5,
+                (x, y) -> {
+                },
+                (x, y) -> {
+                },
+                () -> {},
+                () -> {}
+        );
+        List<RotationEvent> events = Collections.synchronizedList(new ArrayList<>());
+        cube.rotations().subscribe(new Flow.Subscriber<>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(16);
+            }
+
+            @Override
+            public void onNext(RotationEvent item) {
+                events.add(item);
+                if (events.size() % 16 == 0)
+                    subscription.request(16);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                throwable.printStackTrace();
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        // Throws on its third event: cancelled with onError instead of stalling.
+        AtomicInteger received = new AtomicInteger(0);
+        AtomicInteger errors = new AtomicInteger(0);
+        cube.rotations().subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(RotationEvent item) {
+                if (received.incrementAndGet() == 3)
+                    throw new IllegalStateException("subscriber failure");
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                errors.incrementAndGet();
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < 8; i++) {
+            threads[i] = new Thread(() -> {
+                Random random = new Random();
+                try {
+                    for (int j = 0; j < 50; j++) {
+                        cube.rotate(random.nextInt(6), random.nextInt(5));
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            for (int i = 0; i < 500 && events.size() < 400; i++) {
+                Thread.sleep(10);
+            }
+            Assertions.assertEquals(400, events.size());
+            Assertions.assertEquals(3, received.get());
+            Assertions.assertEquals(1, errors.get());
+            Cube seqcube = new Cube(5,
+                    (x, y) -> {
+                    },
+                    (x, y) -> {
+                    },
+                    () -> {},
+                    () -> {}
+            );
+            for (int i = 0; i < events.size(); i++) {
+                Assertions.assertEquals(i + 1L, events.get(i).getSequence());
+                seqcube.rotate(events.get(i).getSide(), events.get(i).getLayer());
+            }
+            Assertions.assertEquals(seqcube.show(), cube.show());
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sequential model of the cube, kept independent of Cube's kernels.
+     * Serves as the oracle for concurrent schedules.
+     */
+    static class ReferenceCube {
+        private final int size;
+        private final int[][][] facelets;
+
+        ReferenceCube(int size) {
+            this.size = size;
+            this.facelets = new int[6][size][size];
+            for (int i = 0; i < 6; i++)
+                for (int j = 0; j < size; j++)
+                    for (int k = 0; k < size; k++)
+                        facelets[i][j][k] = i;
+        }
+
+        private int[] column(int side, int index, boolean reversed) {
+            int[] result = new int[size];
+            for (int i = 0; i < size; i++)
+                result[i] = facelets[side][reversed ? size - 1 - i : i][index];
+            return result;
+        }
+
+        private void setColumn(int side, int index, int[] values, boolean reversed) {
+            for (int i = 0; i < size; i++)
+                facelets[side][i][index] = values[reversed ? size - 1 - i : i];
+        }
+
+        private void turnClockwise(int side) {
+            int[][] turned = new int[size][size];
+            for (int i = 0; i < size; i++)
+                for (int j = 0; j < size; j++)
+                    turned[j][size - 1 - i] = facelets[side][i][j];
+            facelets[side] = turned;
+        }
+
+        void rotate(int side, int layer) {
+            int last = size - 1;
+            int[] a, b, c, d;
+            switch (side) {
+                case 0:
+                    a = facelets[1][layer];
+                    facelets[1][layer] = facelets[2][layer];
+                    facelets[2][layer] = facelets[3][layer];
+                    facelets[3][layer] = facelets[4][layer];
+                    facelets[4][layer] = a;
+                    break;
+                case 5:
+                    a = facelets[4][last - layer];
+                    facelets[4][last - layer] = facelets[3][last - layer];
+                    facelets[3][last - layer] = facelets[2][last - layer];
+                    facelets[2][last - layer] = facelets[1][last - layer];
+                    facelets[1][last - layer] = a;
+                    break;
+                case 2:
+                    a = facelets[0][last - layer].clone();
+                    b = column(3, layer, true);
+                    c = facelets[5][layer].clone();
+                    d = column(1, last - layer, true);
+                    setColumn(3, layer, a, false);
+                    facelets[5][layer] = b;
+                    setColumn(1, last - layer, c, false);
+                    facelets[0][last - layer] = d;
+                    break;
+                case 4:
+                    a = facelets[0][layer].clone();
+                    b = column(1, layer, false);
+                    c = facelets[5][last - layer].clone();
+                    d = column(3, last - layer, false);
+                    setColumn(1, layer, a, true);
+                    facelets[5][last - layer] = b;
+                    setColumn(3, last - layer, c, true);
+                    facelets[0][layer] = d;
+                    break;
+                case 1:
+                    a = column(0, layer, false);
+                    b = column(2, layer, false);
+                    c = column(5, layer, true);
+                    d = column(4, last - layer, true);
+                    setColumn(2, layer, a, false);
+                    setColumn(5, layer, b, false);
+                    setColumn(4, last - layer, c, false);
+                    setColumn(0, layer, d, false);
+                    break;
+                default:
+                    a = column(0, last - layer, true);
+                    b = column(4, layer, true);
+                    c = column(5, last - layer, false);
+                    d = column(2, last - layer, false);
+                    setColumn(4, layer, a, false);
+                    setColumn(5, last - layer, b, false);
+                    setColumn(2, last - layer, c, false);
+                    setColumn(0, last - layer, d, false);
+                    break;
+            }
+            int[] opposite = {5, 3, 4, 1, 2, 0};
+            if (layer == 0) {
+                turnClockwise(side);
+            } else if (layer == last) {
+                for (int i = 0; i < 3; i++)
+                    turnClockwise(opposite[side]);
+            }
+        }
+
+        String show() {
+            StringBuilder result = new StringBuilder();
+            for (int[][] face : facelets)
+                for (int[] row : face)
+                    for (int colour : row)
+                        result.append(colour);
+            return result.toString();
+        }
+    }
+
+    /**
+     * Runs a fixed set of operations, one thread each, and forces them to be
+     * admitted in a given order: the next thread starts only once the previous
+     * one holds mainSemaphore, which is fair. Every admission order of the
+     * set is explored and checked against ReferenceCube applied in that order.
+     * A side of -1 stands for show().
+     */
+    static class ScheduleHarness {
+        private final int size;
+        private final int[][] operations;
+        private int schedules = 0;
+        private int failures = 0;
+
+        ScheduleHarness(int size, int[][] operations) {
+            this.size = size;
+            this.operations = operations;
+        }
+
+        // Axes as in CubeSoak: {top, bottom}, {left, right} and {front, back}.
+        private static final int[] AXIS = {0, 1, 2, 1, 2, 0};
+
+        /**
+         * Counts overlaps the protocol forbids among the rotations between
+         * their before and after callbacks: two axes at once, one layer
+         * twice, or any rotation during a show.
+         */
+        static class OverlapChecker {
+            private final int size;
+            private final int[] inFlightPerAxis = new int[3];
+            private final boolean[] layerBusy;
+            private int violations = 0;
+
+            OverlapChecker(int size) {
+                this.size = size;
+                this.layerBusy = new boolean[3 * size];
+            }
+
+            // Layer counted from the first side of the axis.
+            private int layer(int side, int layer) {
+                return side == AXIS[side] ? layer : size - 1 - layer;
+            }
+
+            synchronized void before(int side, int layer) {
+                int axis = AXIS[side];
+                for (int other = 0; other < 3; other++)
+                    if (other != axis && inFlightPerAxis[other] > 0)
+                        violations++;
+                int slot = axis * size + layer(side, layer);
+                if (layerBusy[slot])
+                    violations++;
+                layerBusy[slot] = true;
+                inFlightPerAxis[axis]++;
+            }
+
+            // Cube.rotate hands afterRotation the layer already counted from
+            // the first side of the axis.
+            synchronized void after(int side, int layerIndex) {
+                int axis = AXIS[side];
+                layerBusy[axis * size + layerIndex] = false;
+                inFlightPerAxis[axis]--;
+            }
+
+            synchronized void show() {
+                for (int other = 0; other < 3; other++)
+                    if (inFlightPerAxis[other] > 0)
+                        violations++;
+            }
+
+            synchronized int getViolations() {
+                return violations;
+            }
+        }
+
+        private boolean run(int[] order) throws InterruptedException {
+            OverlapChecker checker = new OverlapChecker(size);
+            Semaphore admitted = new Semaphore(0);
+            Cube cube = new Cube(new ArrayFaceletStore(size),
+                    checker::before,
+                    checker::after,
+                    checker::show,
+                    () -> {
+                    },
+                    admitted::release
+            );
+
+            String[] shown = new String[operations.length];
+            Thread[] threads = new Thread[operations.length];
+            for (int i : order) {
+                int[] operation = operations[i];
+                threads[i] = new Thread(() -> {
+                    try {
+                        if (operation[0] < 0)
+                            shown[i] = cube.show();
+                        else
+                            cube.rotate(operation[0], operation[1]);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                });
+                threads[i].start();
+                admitted.acquire();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            ReferenceCube reference = new ReferenceCube(size);
+            boolean correct = checker.getViolations() == 0;
+            for (int i : order) {
+                if (operations[i][0] < 0)
+                    correct &= reference.show().equals(shown[i]);
+                else
+                    reference.rotate(operations[i][0], operations[i][1]);
+            }
+            return correct && reference.show().equals(cube.show());
+        }
+
+        private void explore(int[] order, int fixed) throws InterruptedException {
+            if (fixed == order.length) {
+                schedules++;
+                if (!run(order))
+                    failures++;
+                return;
+            }
+            for (int i = fixed; i < order.length; i++) {
+                int temp = order[fixed];
+                order[fixed] = order[i];
+                order[i] = temp;
+                explore(order, fixed + 1);
+                order[i] = order[fixed];
+                order[fixed] = temp;
+            }
+        }
+
+        int exploreAll() throws InterruptedException {
+            int[] order = new int[operations.length];
+            for (int i = 0; i < order.length; i++)
+                order[i] = i;
+            explore(order, 0);
+            return failures;
+        }
+
+        int getSchedules() {
+            return schedules;
+        }
+    }
+
+    @Test
+    @Tag("concurrency")
+    @Tag("correctness")
+    @DisplayName("Explores every admission order of a mix of rotations and a show against a sequential model.")
+    public void Test17() {
+        int[][] operations = {{0, 0}, {5, 0}, {2, 1}, {1, 0}, {3, 2}, {-1, 0}};
+        ScheduleHarness harness = new ScheduleHarness(3, operations);
+        try {
+            Assertions.assertEquals(0, harness.exploreAll());
+            Assertions.assertEquals(720, harness.getSchedules());
+
+            // The checker itself: left with right is legal, left with back,
+            // front with right and right 2 with left 0, the same layer, are not.
+            ScheduleHarness.OverlapChecker checker = new ScheduleHarness.OverlapChecker(3);
+            checker.before(1, 0);
+            checker.before(3, 0);
+            Assertions.assertEquals(0, checker.getViolations());
+            checker.before(4, 1);
+            Assertions.assertEquals(1, checker.getViolations());
+            checker.after(4, 1);
+            checker.after(1, 0);
+            checker.after(3, 2);
+            checker.before(2, 0);
+            checker.before(3, 1);
+            Assertions.assertEquals(2, checker.getViolations());
+            checker.after(3, 1);
+            checker.after(2, 0);
+            checker.before(1, 0);
+            checker.before(3, 2);
+            Assertions.assertEquals(3, checker.getViolations());
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    @Tag("interruptions")
+    @Tag("correctness")
+    @DisplayName("Short soak with frequent interrupts keeps colour counts and replays to the same cube.")
+    public void Test18() {
+        CubeSoak soak = new CubeSoak(5, 8, 2, new double[]{1, 1, 1}, 0.05, 200, 1, 0);
+        try {
+            Assertions.assertTrue(soak.run());
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    @Tag("correctness")
+    @DisplayName("Checks whether the unsynchronized cube gives the same results as the concurrent one.")
+    public void Test19() {
+        Cube cube = new Cube(6,
+                (x, y) -> {
+                },
+                (x, y) -> {
+                },
+                () -> {},
+                () -> {}
+        );
+        SequentialCube seqcube = new SequentialCube(6);
+        Random random = new Random();
+        try {
+            for (int i = 0; i < 500; i++) {
+                int side = random.nextInt(6);
+                int layer = random.nextInt(6);
+                cube.rotate(side, layer);
+                seqcube.rotate(side, layer);
+            }
+            Assertions.assertEquals(cube.show(), seqcube.show());
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    @Tag("correctness")
+    @DisplayName("Checks whether isSolved and isFaceUniform agree with the shown state.")
+    public void Test20() {
+        Cube cube = new Cube(4,
+                (x, y) -> {
+                },
+                (x, y) -> {
+                },
+                () -> {},
+                () -> {}
+        );
+        // Counted colours here, the fresh cube below reads its faces.
+        cube.enableStateTracking();
+        Random random = new Random();
+        try {
+            Assertions.assertTrue(cube.isSolved());
+            for (int i = 0; i < 200; i++) {
+                cube.rotate(random.nextInt(6), random.nextInt(4));
+                String shown = cube.show();
+                boolean solved = true;
+                for (int side = 0; side < 6; side++) {
+                    boolean uniform = true;
+                    for (int j = 1; j < 16; j++) {
+                        uniform &= shown.charAt(side * 16 + j) == shown.charAt(side * 16);
+                    }
+                    Assertions.assertEquals(uniform, cube.isFaceUniform(side));
+                    solved &= uniform;
+                }
+                Assertions.assertEquals(solved, cube.isSolved());
+            }
+            Cube fresh = new Cube(4,
+                    (x, y) -> {
+                    },
+                    (x, y) -> {
+                    },
+                    () -> {},
+                    () -> {}
+            );
+            fresh.rotate(0, 0);
+            Assertions.assertFalse(fresh.isSolved());
+            Assertions.assertTrue(fresh.isFaceUniform(0));
+            Assertions.assertFalse(fresh.isFaceUniform(2));
+            // The same layer turned back, seen from the opposite side.
+            fresh.rotate(5, 3);
+            Assertions.assertTrue(fresh.isSolved());
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    @Tag("correctness")
+    @DisplayName("Checks whether the state hash follows the state and the transposition table finds it.")
+    public void Test21() {
+        SequentialCube cube = new SequentialCube(5);
+        SequentialCube other = new SequentialCube(5);
+        TranspositionTable<String> table = new TranspositionTable<>(1024);
+        Random random = new Random();
+        long solved = cube.stateHash();
+        for (int i = 0; i < 300; i++) {
+            int side = random.nextInt(6);
+            int layer = random.nextInt(5);
+            cube.rotate(side, layer);
+            other.rotate(side, layer);
+            table.put(cube.stateHash(), cube.show());
+        }
+        Assertions.assertEquals(cube.stateHash(), other.stateHash());
+        Assertions.assertEquals(cube.show(), table.get(cube.stateHash()));
+        Assertions.assertNotEquals(solved, cube.stateHash());
+
+        // A tracked hash, kept up by the rotations, agrees with the computed one.
+        Cube tracked = new Cube(5, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+        tracked.enableStateTracking();
+        SequentialCube computed = new SequentialCube(5);
+        try {
+            for (int i = 0; i < 100; i++) {
+                int side = random.nextInt(6);
+                int layer = random.nextInt(5);
+                tracked.rotate(side, layer);
+                computed.rotate(side, layer);
+                Assertions.assertEquals(computed.stateHash(), tracked.stateHash());
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        SequentialCube fresh = new SequentialCube(5);
+        fresh.rotate(2, 1);
+        Assertions.assertNotEquals(solved, fresh.stateHash());
+        fresh.rotate(4, 3);
+        Assertions.assertEquals(solved, fresh.stateHash());
+        fresh.rotate(0, 0);
+        fresh.rotate(0, 0);
+        long twice = fresh.stateHash();
+        fresh.rotate(5, 4);
+        fresh.rotate(5, 4);
+        fresh.rotate(5, 4);
+        fresh.rotate(5, 4);
+        Assertions.assertEquals(twice, fresh.stateHash());
+    }
+
+    @Test
+    @Tag("correctness")
+    @DisplayName("Checks whether the state search finds shortest sequences reaching a pattern.")
+    public void Test22() {
+        SequentialCube cube = new SequentialCube(2);
+        String solved = cube.show();
+        cube.rotate(0, 0);
+        cube.rotate(2, 1);
+        cube.rotate(3, 0);
+        String scrambled = cube.show();
+        StateSearch search = new StateSearch(2);
+
+        StateSearch.Result back = search.search(scrambled, solved, 5);
+        Assertions.assertTrue(back.isFound());
+        Assertions.assertTrue(back.getLength() <= 3);
+        for (int i = 0; i < back.getLength(); i++) {
+            cube.rotate(back.getSide(i), back.getLayer(i));
+        }
+        Assertions.assertEquals(solved, cube.show());
+
+        StateSearch.Result none = search.search(solved, solved, 3);
+        Assertions.assertEquals(0, none.getLength());
+
+        String topOnly = "1111" + ".".repeat(20);
+        StateSearch.Result pattern = search.search(solved, topOnly, 4);
+        Assertions.assertTrue(pattern.isFound());
+        SequentialCube replay = new SequentialCube(2);
+        for (int i = 0; i < pattern.getLength(); i++) {
+            replay.rotate(pattern.getSide(i), pattern.getLayer(i));
+        }
+        Assertions.assertTrue(replay.show().startsWith("1111"));
+
+        // The visited set grows level by level up to the bound.
+        String unreachable = "0".repeat(24);
+        StateSearch small = new StateSearch(2, ForkJoinPool.commonPool(), 200);
+        Assertions.assertFalse(small.search(solved, unreachable, 2).isFound());
+        Assertions.assertThrows(IllegalStateException.class, () -> small.search(solved, unreachable, 4));
+    }
+
+    @Test
+    @Tag("correctness")
+    @DisplayName("Checks whether face reads agree with show() and overlap with rotations that keep the face in place.")
+    public void Test23() {
+        Semaphore rotating = new Semaphore(0);
+        Semaphore read = new Semaphore(0);
+        Cube cube = new Cube(3,
+                (x, y) -> {
+                    if (y == 1) {
+                        rotating.release();
+                        read.acquireUninterruptibly();
+                    }
+                },
+                (x, y) -> {
+                },
+                () -> {},
+                () -> {}
+        );
+        try {
+            Random random = new Random();
+            for (int i = 0; i < 50; i++) {
+                cube.rotate(random.nextInt(6), random.nextBoolean() ? 0 : 2);
+            }
+            String shown = cube.show();
+            byte[] face = new byte[9];
+            for (int side = 0; side < 6; side++) {
+                cube.copyFace(side, face);
+                int[] row = cube.getRow(side, 1);
+                int[] column = cube.getColumn(side, 2);
+                for (int i = 0; i < 9; i++) {
+                    Assertions.assertEquals(shown.charAt(side * 9 + i) - '0', face[i]);
+                    Assertions.assertEquals(face[i], cube.getFacelet(side, i / 3, i % 3));
+                }
+                for (int i = 0; i < 3; i++) {
+                    Assertions.assertEquals(face[3 + i], row[i]);
+                    Assertions.assertEquals(face[i * 3 + 2], column[i]);
+                }
+            }
+
+            // The middle layer of the top-bottom axis stays inside its rotation
+            // until the top face has been read.
+            Thread rotation = new Thread(() -> {
+                try {
+                    cube.rotate(0, 1);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            rotation.start();
+            rotating.acquire();
+            int[] top = cube.getRow(0, 0);
+            int[] bottom = cube.getColumn(5, 1);
+            read.release();
+            rotation.join();
+            Assertions.assertEquals(3, top.length);
+            Assertions.assertEquals(3, bottom.length);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Runs rotations, wide moves, whole-cube turns, move scripts, undo, redo, shows and face reads on 8 threads, then
+    // replays the published rotations and compares with every snapshot taken meanwhile. Undo must be enabled.
+    private static void checkConcurrentReplay(Cube cube) {
+        int size = cube.getSize();
+        List<RotationEvent> events = Collections.synchronizedList(new ArrayList<>());
+        List<CubeChanges> snapshots = Collections.synchronizedList(new ArrayList<>());
+        MoveProgram script = MoveProgram.compile("Rw U2 R' D M y", size);
+        cube.rotations().subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(RotationEvent item) {
+                events.add(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                throwable.printStackTrace();
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < 8; i++) {
+            threads[i] = new Thread(() -> {
+                Random random = new Random();
+                byte[] face = new byte[size * size];
+                try {
+                    for (int j = 0; j < 200; j++) {
+                        if (j % 50 == 0)
+                            snapshots.add(cube.showChangesSince(-1));
+                        else if (j % 50 == 25)
+                            cube.copyFace(random.nextInt(6), face);
+                        else if (j % 10 == 5)
+                            script.run(cube);
+                        else if (j % 10 == 7)
+                            cube.rotateRange(random.nextInt(6), random.nextInt(2), size / 2);
+                        else if (j % 50 == 40)
+                            cube.rotateRange(random.nextInt(6), 0, size - 1);
+                        else if (j % 50 == 43)
+                            cube.undo(3);
+                        else if (j % 50 == 47)
+                            cube.redo(2);
+                        else
+                            cube.rotate(random.nextInt(6), random.nextInt(size));
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            long total = cube.getVersion();
+            for (int i = 0; i < 500 && events.size() < total; i++) {
+                Thread.sleep(10);
+            }
+            Assertions.assertEquals(total, events.size());
+            snapshots.add(cube.showChangesSince(-1));
+            snapshots.sort((a, b) -> Long.compare(a.getVersion(), b.getVersion()));
+
+            SequentialCube replay = new SequentialCube(size);
+            int next = 0;
+            for (CubeChanges snapshot : snapshots) {
+                while (next < snapshot.getVersion()) {
+                    replay.rotate(events.get(next).getSide(), events.get(next).getLayer());
+                    next++;
+                }
+                Assertions.assertEquals(replay.show(), snapshot.getSnapshot());
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Records the (side, layer) pairs given to the rotation callbacks of a
+    // cube used by one thread. afterRotation must get the pairs beforeRotation
+    // got, in the same order, with the layer counted from the first side of
+    // the axis (top, left or front) the way Cube has always reported it.
+    static class CallbackPairs {
+        private final int size;
+        final List<int[]> before = new ArrayList<>();
+        final List<int[]> after = new ArrayList<>();
+
+        CallbackPairs(int size) {
+            this.size = size;
+        }
+
+        void before(int side, int layer) {
+            before.add(new int[]{side, layer});
+        }
+
+        void after(int side, int layer) {
+            after.add(new int[]{side, layer});
+        }
+
+        Cube newCube() {
+            return new Cube(size, this::before, this::after, () -> {}, () -> {});
+        }
+
+        // Checks and forgets the pairs recorded so far.
+        void assertPaired() {
+            Assertions.assertEquals(before.size(), after.size());
+            for (int i = 0; i < before.size(); i++) {
+                int side = before.get(i)[0];
+                int layer = before.get(i)[1];
+                int layerIndex = side == 0 || side == 1 || side == 2 ? layer : size - 1 - layer;
+                Assertions.assertArrayEquals(new int[]{side, layerIndex}, after.get(i));
+            }
+            before.clear();
+            after.clear();
+        }
+    }
+
+    @Test
+    @Tag("concurrency")
+    @DisplayName("Checks whether region scheduling gives the results of running the admitted rotations one by one.")
+    public void Test24() {
+        for (int blockSize : new int[]{1, 2, 3, 8}) {
+            Cube cube = new Cube(7,
+                    (x, y) -> {
+                    },
+                    (x, y) -> {
+                    },
+                    () -> {},
+                    () -> {}
+            );
+            cube.enableRegionScheduling(blockSize);
+            cube.enableUndo(64);
+            checkConcurrentReplay(cube);
+        }
+
+        // Both protocols hand the callbacks the same pairs.
+        CallbackPairs axisPairs = new CallbackPairs(4);
+        CallbackPairs regionPairs = new CallbackPairs(4);
+        Cube axis = axisPairs.newCube();
+        Cube region = regionPairs.newCube();
+        region.enableRegionScheduling(2);
+        try {
+            for (int side = 0; side < 6; side++) {
+                for (int layer = 0; layer < 4; layer++) {
+                    axis.rotate(side, layer);
+                    region.rotate(side, layer);
+                }
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        Assertions.assertEquals(24, regionPairs.after.size());
+        for (int i = 0; i < 24; i++)
+            Assertions.assertArrayEquals(axisPairs.after.get(i), regionPairs.after.get(i));
+        axisPairs.assertPaired();
+        regionPairs.assertPaired();
+    }
+
+    @Test
+    @Tag("concurrency")
+    @DisplayName("Checks whether the adaptive wait strategy keeps rotations and shows consistent.")
+    public void Test25() {
+        for (int size : new int[]{3, 7}) {
+            Cube cube = new Cube(size,
+                    (x, y) -> {
+                    },
+                    (x, y) -> {
+                    },
+                    () -> {},
+                    () -> {}
+            );
+            cube.setWaitStrategy(WaitStrategy.ADAPTIVE);
+            cube.enableUndo(64);
+            checkConcurrentReplay(cube);
+        }
+    }
+
+    @Test
+    @Tag("correctness")
+    @DisplayName("Checks whether compiled and optimized move scripts give the same cube as hand written rotations.")
+    public void Test26() {
+        MoveProgram program = MoveProgram.compile("R U R' U2 3Rw", 4);
+        Assertions.assertEquals(7, program.length());
+        SequentialCube expected = new SequentialCube(4);
+        expected.rotate(3, 0);
+        expected.rotate(0, 0);
+        expected.rotate(1, 3);
+        expected.rotate(0, 0);
+        expected.rotate(0, 0);
+        expected.rotate(3, 0);
+        expected.rotate(3, 1);
+        expected.rotate(3, 2);
+        SequentialCube compiled = new SequentialCube(4);
+        program.run(compiled);
+        Assertions.assertEquals(expected.show(), compiled.show());
+
+        Assertions.assertEquals(0, MoveProgram.compile("R R R R x x'", 4).optimize().length());
+        Assertions.assertEquals(2, MoveProgram.compile("R L' R", 4).optimize().length());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> MoveProgram.compile("R Q", 4));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> MoveProgram.compile("5R", 4));
+
+        String[] moves = {"U", "L", "F", "R", "B", "D", "Rw", "3Fw", "2D", "M", "E", "S", "x", "y", "z", "u", "l"};
+        String[] modifiers = {"", "'", "2", "2'", "3"};
+        Random random = new Random();
+        Cube cube = new Cube(5,
+                (x, y) -> {
+                },
+                (x, y) -> {
+                },
+                () -> {},
+                () -> {}
+        );
+        SequentialCube plain = new SequentialCube(5);
+        SequentialCube optimized = new SequentialCube(5);
+        try {
+            for (int round = 0; round < 20; round++) {
+                StringBuilder script = new StringBuilder();
+                for (int i = 0; i < 30; i++) {
+                    script.append(moves[random.nextInt(moves.length)])
+                            .append(modifiers[random.nextInt(modifiers.length)])
+                            .append(' ');
+                }
+                MoveProgram original = MoveProgram.compile(script.toString(), 5);
+                MoveProgram shorter = original.optimize();
+                Assertions.assertTrue(shorter.length() <= original.length());
+                original.run(plain);
+                shorter.run(optimized);
+                shorter.run(cube);
+                Assertions.assertEquals(plain.show(), optimized.show());
+                Assertions.assertEquals(plain.show(), cube.show());
+            }
+
+            // A program reports the layers rotate() would.
+            CallbackPairs pairs = new CallbackPairs(5);
+            MoveProgram.compile("R U' 2Fw B2 D L M", 5).run(pairs.newCube());
+            Assertions.assertFalse(pairs.before.isEmpty());
+            pairs.assertPaired();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    @Tag("correctness")
+    @DisplayName("Checks whether wide moves equal the rotations of their layers one by one.")
+    public void Test27() {
+        Random random = new Random();
+        AtomicInteger before = new AtomicInteger(0);
+        AtomicInteger after = new AtomicInteger(0);
+        for (int size = 1; size <= 7; size++) {
+            Cube cube = new Cube(size,
+                    (x, y) -> {
+                        before.incrementAndGet();
+                    },
+                    (x, y) -> {
+                        after.incrementAndGet();
+                    },
+                    () -> {},
+                    () -> {}
+            );
+            SequentialCube wide = new SequentialCube(size);
+            SequentialCube single = new SequentialCube(size);
+            try {
+                for (int i = 0; i < 100; i++) {
+                    int side = random.nextInt(6);
+                    int from = random.nextInt(size);
+                    int to = from + random.nextInt(size - from);
+                    long version = cube.getVersion();
+                    before.set(0);
+                    after.set(0);
+                    cube.rotateRange(side, from, to);
+                    wide.rotateRange(side, from, to);
+                    for (int layer = from; layer <= to; layer++)
+                        single.rotate(side, layer);
+                    Assertions.assertEquals(to - from + 1, cube.getVersion() - version);
+                    Assertions.assertEquals(to - from + 1, before.get());
+                    Assertions.assertEquals(to - from + 1, after.get());
+                }
+                Assertions.assertEquals(single.show(), wide.show());
+                Assertions.assertEquals(single.show(), cube.show());
+                Assertions.assertEquals(single.stateHash(), cube.stateHash());
+
+                SequentialCube solved = new SequentialCube(size);
+                solved.rotateRange(0, 0, size - 1);
+                solved.rotateRange(5, 0, size - 1);
+                Assertions.assertTrue(solved.isSolved());
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        SequentialCube cube = new SequentialCube(3);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> cube.rotateRange(0, 2, 1));
+
+        // Layers whose beforeRotation returned get their afterRotation even
+        // when a later one throws.
+        CallbackPairs pairs = new CallbackPairs(5);
+        Cube failing = new Cube(5,
+                (x, y) -> {
+                    if (y == 3)
+                        throw new IllegalStateException("before");
+                    pairs.before(x, y);
+                },
+                pairs::after,
+                () -> {},
+                () -> {}
+        );
+        try {
+            String solved = failing.show();
+            Assertions.assertThrows(IllegalStateException.class, () -> failing.rotateRange(4, 1, 3));
+            Assertions.assertEquals(2, pairs.after.size());
+            pairs.assertPaired();
+            Assertions.assertEquals(solved, failing.show());
+            failing.rotateRange(4, 0, 2);
+            failing.rotateRange(1, 1, 2);
+            Assertions.assertEquals(5, pairs.after.size());
+            pairs.assertPaired();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    @Tag("correctness")
+    @DisplayName("Checks whether turning the whole cube through the orientation frame looks like moving every layer.")
+    public void Test28() {
+        // Mode 1 schedules regions, mode 2 keeps the hash up to date.
+        for (int mode = 0; mode < 3; mode++) {
+            for (int size = 1; size <= 5; size++) {
+                Cube cube = new Cube(size,
+                        (x, y) -> {
+                        },
+                        (x, y) -> {
+                        },
+                        () -> {},
+                        () -> {}
+                );
+                if (mode == 1)
+                    cube.enableRegionScheduling(2);
+                if (mode == 2)
+                    cube.enableStateTracking();
+                SequentialCube expected = new SequentialCube(size);
+                Random random = new Random();
+                int faceletsPerSide = size * size;
+                try {
+                    String previous = cube.show();
+                    long version = cube.getVersion();
+                    for (int i = 0; i < 200; i++) {
+                        int side = random.nextInt(6);
+                        int layer = random.nextInt(size);
+                        if (i % 3 == 0) {
+                            cube.rotateRange(side, 0, size - 1);
+                            for (int j = 0; j < size; j++)
+                                expected.rotate(side, j);
+                        } else if (i % 3 == 1) {
+                            int to = layer + random.nextInt(size - layer);
+                            cube.rotateRange(side, layer, to);
+                            expected.rotateRange(side, layer, to);
+                        } else {
+                            cube.rotate(side, layer);
+                            expected.rotate(side, layer);
+                        }
+
+                        String shown = expected.show();
+                        if (i % 10 == 0) {
+                            CubeChanges changes = cube.showChangesSince(version);
+                            char[] patched = previous.toCharArray();
+                            for (int j = 0; j < changes.getChangeCount(); j++)
+                                patched[changes.getSide(j) * faceletsPerSide + changes.getIndex(j)] = (char) ('0' + changes.getColour(j));
+                            Assertions.assertEquals(shown, changes.isSnapshot() ? changes.getSnapshot() : new String(patched));
+                            previous = shown;
+                            version = changes.getVersion();
+                        }
+                        Assertions.assertEquals(shown, cube.show());
+                        Assertions.assertEquals(expected.stateHash(), cube.stateHash());
+                        byte[] face = new byte[faceletsPerSide];
+                        cube.copyFace(side, face);
+                        int[] row = cube.getRow(side, layer);
+                        int[] column = cube.getColumn(side, layer);
+                        for (int j = 0; j < faceletsPerSide; j++)
+                            Assertions.assertEquals(shown.charAt(side * faceletsPerSide + j) - '0', face[j]);
+                        for (int j = 0; j < size; j++) {
+                            Assertions.assertEquals(face[layer * size + j], row[j]);
+                            Assertions.assertEquals(face[j * size + layer], column[j]);
+                        }
+                        Assertions.assertEquals(face[0], cube.getFacelet(side, 0, 0));
+                        Assertions.assertEquals(expected.isFaceUniform(side), cube.isFaceUniform(side));
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    @Test
+    @Tag("correctness")
+    @DisplayName("Checks whether a cube written in the binary format reads back to the same state.")
+    public void Test29() {
+        Random random = new Random();
+        for (int size = 1; size <= 7; size++) {
+            Cube cube = new Cube(size,
+                    (x, y) -> {
+                    },
+                    (x, y) -> {
+                    },
+                    () -> {},
+                    () -> {}
+            );
+            if (size % 2 == 0)
+                cube.enableRegionScheduling(2);
+            try {
+                for (int i = 0; i <= 20; i++) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    cube.writeTo(out);
+                    if (i == 0 && size > 1)
+                        Assertions.assertTrue(out.size() < 10 + 6 * (size * size / 8 + 2));
+                    FaceletStore store = CubeFormat.readFrom(new ByteArrayInputStream(out.toByteArray()),
+                            i % 2 == 0 ? FlatFaceletStore::new : DirectFaceletStore::new);
+                    Cube copy = new Cube(store, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+                    Assertions.assertEquals(cube.show(), copy.show());
+                    Assertions.assertEquals(cube.stateHash(), copy.stateHash());
+
+                    if (i % 5 == 4)
+                        cube.rotateRange(random.nextInt(6), 0, size - 1);
+                    else
+                        cube.rotate(random.nextInt(6), random.nextInt(size));
+                }
+                byte[] bytes = new byte[16];
+                Assertions.assertThrows(IOException.class, () -> CubeFormat.readFrom(new ByteArrayInputStream(bytes), FlatFaceletStore::new));
+            } catch (InterruptedException | IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Test
+    @Tag("correctness")
+    @DisplayName("Checks whether a bulk snapshot of many cubes matches their show().")
+    public void Test30() {
+        Random random = new Random();
+        CubeSnapshots snapshots = new CubeSnapshots();
+        List<Cube> cubes = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            Cube cube = new Cube(1 + i % 6, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+            if (i % 7 == 0)
+                cube.enableRegionScheduling(2);
+            cubes.add(cube);
+        }
+        try {
+            for (int round = 0; round < 3; round++) {
+                for (Cube cube : cubes) {
+                    for (int j = 0; j < 10; j++)
+                        cube.rotate(random.nextInt(6), random.nextInt(cube.getSize()));
+                    cube.rotateRange(random.nextInt(6), 0, cube.getSize() - 1);
+                }
+                List<Cube> scraped = cubes.subList(0, cubes.size() - 50 * round);
+                ByteBuffer buffer = snapshots.snapshot(scraped);
+                Assertions.assertEquals(snapshots.offset(scraped.size()), buffer.remaining());
+                for (int i = 0; i < scraped.size(); i++) {
+                    String shown = scraped.get(i).show();
+                    Assertions.assertEquals(shown, snapshots.show(i));
+                    Assertions.assertEquals(shown.charAt(0), (char) buffer.get(snapshots.offset(i)));
+                }
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    @Tag("concurrency")
+    @DisplayName("Checks whether the rotation limit and layer groups bound the rotations running at once.")
+    public void Test31() {
+        int size = 12;
+        int width = 3;
+        AtomicInteger running = new AtomicInteger(0);
+        AtomicInteger maxRunning = new AtomicInteger(0);
+        AtomicInteger[] groups = new AtomicInteger[size / width];
+        AtomicInteger groupOverlaps = new AtomicInteger(0);
+        for (int i = 0; i < groups.length; i++)
+            groups[i] = new AtomicInteger(0);
+        // Rotations of side 1 wait here until released.
+        Semaphore hold = new Semaphore(0);
+        Cube cube = new Cube(size,
+                (side, layer) -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    if (groups[layer / width].incrementAndGet() > 1)
+                        groupOverlaps.incrementAndGet();
+                    try {
+                        if (side == 1)
+                            hold.acquire();
+                        else
+                            Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                },
+                (side, layer) -> {
+                    groups[layer / width].decrementAndGet();
+                    running.decrementAndGet();
+                },
+                () -> {},
+                () -> {}
+        );
+        cube.setLayerGroupWidth(width);
+        cube.setRotationLimit(3);
+        cube.setWaitStrategy(WaitStrategy.ADAPTIVE);
+        List<int[]> moves = Collections.synchronizedList(new ArrayList<>());
+        try {
+            // Lowered from 3 to 2 while rotations run, then 2 for a whole batch.
+            Thread[] threads = randomRotations(cube, size, moves);
+            Thread.sleep(20);
+            cube.setRotationLimit(2);
+            for (Thread thread : threads)
+                thread.join();
+            Assertions.assertTrue(maxRunning.get() <= 3);
+            maxRunning.set(0);
+            for (Thread thread : randomRotations(cube, size, moves))
+                thread.join();
+            Assertions.assertTrue(maxRunning.get() <= 2);
+            Assertions.assertEquals(0, groupOverlaps.get());
+
+            // Three rotations hold slots while the cap is removed and set to
+            // 2 again: a fourth one has to wait for two of them to finish.
+            cube.setRotationLimit(3);
+            Thread[] held = new Thread[4];
+            for (int i = 0; i < held.length; i++) {
+                int layer = i * width;
+                held[i] = new Thread(() -> {
+                    try {
+                        cube.rotate(1, layer);
+                        moves.add(new int[]{1, layer});
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                });
+                held[i].start();
+                if (i == 2) {
+                    while (running.get() < 3)
+                        Thread.sleep(1);
+                    cube.setRotationLimit(0);
+                    cube.setRotationLimit(2);
+                }
+            }
+            Thread.sleep(50);
+            Assertions.assertEquals(3, running.get());
+            hold.release(1);
+            Thread.sleep(50);
+            Assertions.assertEquals(2, running.get());
+            hold.release(3);
+            for (Thread thread : held)
+                thread.join();
+
+            cube.setRotationLimit(0);
+            cube.rotate(0, 0);
+            moves.add(new int[]{0, 0});
+            // Rotations that overlapped are of one axis and commute, so the
+            // order they were listed in does not matter.
+            SequentialCube expected = new SequentialCube(size);
+            for (int[] move : moves)
+                expected.rotate(move[0], move[1]);
+            Assertions.assertEquals(2 * 8 * 30 + held.length + 1, moves.size());
+            Assertions.assertEquals(expected.show(), cube.show());
+            Assertions.assertThrows(IllegalArgumentException.class, () -> cube.setRotationLimit(-1));
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Eight started threads, each rotating random layers of side 0.
+    private static Thread[] randomRotations(Cube cube, int size, List<int[]> moves) {
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                Random random = new Random();
+                try {
+                    for (int j = 0; j < 30; j++) {
+                        int layer = random.nextInt(size);
+                        cube.rotate(0, layer);
+                        moves.add(new int[]{0, layer});
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            threads[i].start();
+        }
+        return threads;
+    }
+
+    @Test
+    @Tag("concurrency")
+    @DisplayName("Checks whether a high priority show overtakes queued rotations.")
+    public void Test32() {
+        Semaphore hold = new Semaphore(0);
+        List<String> admitted = Collections.synchronizedList(new ArrayList<>());
+        Cube cube = new Cube(new ArrayFaceletStore(3), (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {}, () -> {
+            admitted.add(Thread.currentThread().getName());
+            if (admitted.size() == 1)
+                hold.acquireUninterruptibly();
+        });
+        cube.enablePriorityLanes(4);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            threads.add(new Thread(() -> {
+                try {
+                    cube.rotate(0, 1);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }, "normal-" + i));
+        }
+        threads.add(new Thread(() -> {
+            try {
+                cube.show(Priority.HIGH);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }, "high"));
+        try {
+            threads.get(0).start();
+            while (admitted.isEmpty())
+                Thread.sleep(1);
+            // The first rotation holds the admission, the others queue behind it.
+            for (Thread thread : threads.subList(1, 6)) {
+                thread.start();
+                Thread.sleep(20);
+            }
+            threads.get(6).start();
+            Thread.sleep(50);
+            hold.release();
+            for (Thread thread : threads)
+                thread.join();
+            // Only the rotation already through the gate can come in between.
+            Assertions.assertTrue(admitted.indexOf("high") <= 2);
+            Assertions.assertEquals(7, admitted.size());
+            Assertions.assertEquals(1, cube.getAdmissionCount(Priority.HIGH));
+            Assertions.assertEquals(6, cube.getAdmissionCount(Priority.NORMAL));
+            Assertions.assertTrue(cube.getAdmissionLatency(Priority.NORMAL, 0.99) > 0);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    @Tag("correctness")
+    @DisplayName("Checks whether undo and redo bring back earlier states.")
+    public void Test33() {
+        Random random = new Random();
+        for (int mode = 0; mode < 2; mode++) {
+            int size = 4;
+            AtomicInteger rotations = new AtomicInteger(0);
+            Cube cube = new Cube(size, (x, y) -> rotations.incrementAndGet(), (x, y) -> {}, () -> {}, () -> {});
+            if (mode == 1)
+                cube.enableRegionScheduling(2);
+            Assertions.assertThrows(IllegalStateException.class, () -> cube.undo(1));
+            cube.enableUndo(30);
+            try {
+                List<String> states = new ArrayList<>();
+                states.add(cube.show());
+                for (int i = 0; i < 40; i++) {
+                    cube.rotate(random.nextInt(6), random.nextInt(size));
+                    states.add(cube.show());
+                }
+                Assertions.assertEquals(5, cube.undo(5));
+                Assertions.assertEquals(states.get(35), cube.show());
+                Assertions.assertEquals(45, rotations.get());
+                Assertions.assertEquals(45, cube.getVersion());
+                Assertions.assertEquals(3, cube.redo(3));
+                Assertions.assertEquals(states.get(38), cube.show());
+                Assertions.assertEquals(2, cube.redo(10));
+                Assertions.assertEquals(states.get(40), cube.show());
+
+                // Only the last 30 rotations are kept.
+                Assertions.assertEquals(30, cube.undo(100));
+                Assertions.assertEquals(states.get(10), cube.show());
+                Assertions.assertEquals(30, cube.redo(30));
+                Assertions.assertEquals(states.get(40), cube.show());
+
+                // A new rotation clears what could be redone.
+                Assertions.assertEquals(3, cube.undo(3));
+                cube.rotate(0, 0);
+                Assertions.assertEquals(0, cube.redo(1));
+                Assertions.assertEquals(1, cube.undo(1));
+                Assertions.assertEquals(states.get(37), cube.show());
+
+                // A whole-cube turn is undone layer by layer.
+                cube.rotateRange(2, 0, size - 1);
+                Assertions.assertEquals(size, cube.undo(size));
+                Assertions.assertEquals(states.get(37), cube.show());
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Undo and redo report the layers rotate() would, in both modes.
+        for (int mode = 0; mode < 2; mode++) {
+            CallbackPairs pairs = new CallbackPairs(4);
+            Cube paired = pairs.newCube();
+            if (mode == 1)
+                paired.enableRegionScheduling(2);
+            paired.enableUndo(10);
+            try {
+                for (int side = 0; side < 6; side++)
+                    paired.rotate(side, side % 4);
+                Assertions.assertEquals(6, paired.undo(6));
+                Assertions.assertEquals(4, paired.redo(4));
+                Assertions.assertEquals(16, pairs.before.size());
+                pairs.assertPaired();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Callbacks that throw partway leave only the applied moves undone.
+        AtomicInteger beforeCalls = new AtomicInteger(0);
+        AtomicInteger afterCalls = new AtomicInteger(0);
+        AtomicInteger failBefore = new AtomicInteger(-1);
+        AtomicInteger failAfter = new AtomicInteger(-1);
+        Cube cube = new Cube(3,
+                (x, y) -> {
+                    if (beforeCalls.incrementAndGet() == failBefore.get())
+                        throw new IllegalStateException("before");
+                },
+                (x, y) -> {
+                    if (afterCalls.incrementAndGet() == failAfter.get())
+                        throw new IllegalStateException("after");
+                },
+                () -> {},
+                () -> {}
+        );
+        cube.enableUndo(20);
+        try {
+            List<String> states = new ArrayList<>();
+            states.add(cube.show());
+            for (int i = 0; i < 10; i++) {
+                cube.rotate(random.nextInt(6), random.nextInt(3));
+                states.add(cube.show());
+            }
+            failBefore.set(beforeCalls.get() + 3);
+            Assertions.assertThrows(IllegalStateException.class, () -> cube.undo(5));
+            Assertions.assertEquals(states.get(8), cube.show());
+            failAfter.set(afterCalls.get() + 1);
+            Assertions.assertThrows(IllegalStateException.class, () -> cube.redo(2));
+            Assertions.assertEquals(states.get(9), cube.show());
+            Assertions.assertEquals(1, cube.redo(5));
+            Assertions.assertEquals(states.get(10), cube.show());
+            Assertions.assertEquals(4, cube.undo(4));
+            Assertions.assertEquals(states.get(6), cube.show());
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    @Tag("correctness")
+    @DisplayName("Checks whether a cube partitioned over local node processes behaves like a local one.")
+    public void Test34() throws IOException {
+        List<Process> processes = new ArrayList<>();
+        try {
+            InetSocketAddress[] nodes = new InetSocketAddress[3];
+            for (int i = 0; i < nodes.length; i++) {
+                Process process = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                        "-cp", System.getProperty("java.class.path"), "concurrentcube.CubeNode", "0")
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+                processes.add(process);
+                String line = new BufferedReader(new InputStreamReader(process.getInputStream())).readLine();
+                Assertions.assertNotNull(line);
+                nodes[i] = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                        Integer.parseInt(line.substring("listening on ".length())));
+            }
+            int size = 5;
+            Random random = new Random();
+            SequentialCube expected = new SequentialCube(size);
+            try (Cube cube = new Cube(new RemoteFaceletStore(size, nodes), (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {})) {
+                // Counted and hashed by the nodes.
+                cube.enableStateTracking();
+                for (int i = 0; i < 60; i++) {
+                    int side = random.nextInt(6);
+                    if (i % 6 == 5) {
+                        cube.rotateRange(side, 0, 2);
+                        expected.rotateRange(side, 0, 2);
+                    } else {
+                        int layer = random.nextInt(size);
+                        cube.rotate(side, layer);
+                        expected.rotate(side, layer);
+                    }
+                }
+                Assertions.assertEquals(expected.show(), cube.show());
+                Assertions.assertEquals(expected.stateHash(), cube.stateHash());
+                for (int side = 0; side < 6; side++)
+                    Assertions.assertEquals(expected.isFaceUniform(side), cube.isFaceUniform(side));
+
+                // Layers of one axis on several threads, each rotation on its own connections.
+                Thread[] threads = new Thread[4];
+                for (int i = 0; i < threads.length; i++) {
+                    int layer = i;
+                    threads[i] = new Thread(() -> {
+                        try {
+                            for (int j = 0; j < 10; j++)
+                                cube.rotate(1, layer);
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                        }
+                    });
+                    threads[i].start();
+                }
+                for (Thread thread : threads)
+                    thread.join();
+                for (int i = 0; i < threads.length; i++) {
+                    for (int j = 0; j < 10; j++)
+                        expected.rotate(1, i);
+                }
+                Assertions.assertEquals(expected.show(), cube.show());
+                Assertions.assertEquals(expected.stateHash(), cube.stateHash());
+
+                // A lost node fails the read, the connections are still closed.
+                processes.get(0).destroy();
+                processes.get(0).waitFor();
+                Assertions.assertThrows(UncheckedIOException.class, () -> cube.getFacelet(0, 0, 0));
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            for (Process process : processes)
+                process.destroy();
+        }
+    }
+
+    @Test
+    @Tag("correctness")
+    @DisplayName("Checks whether the vectorized strip cycles of the flat store match the scalar ones.")
+    public void Test35() {
+        Random random = new Random();
+        for (int size : new int[]{3, 7, 67, 130}) {
+            // Without VectorKernels or jdk.incubator.vector both cubes take the scalar path.
+            SequentialCube scalar = new SequentialCube(new FlatFaceletStore(size, false));
+            SequentialCube vector = new SequentialCube(new FlatFaceletStore(size, FlatFaceletStore.VECTOR));
+            for (int i = 0; i < 300; i++) {
+                int side = random.nextInt(6);
+                int from = random.nextInt(size);
+                if (i % 10 == 9) {
+                    int to = from + random.nextInt(size - from);
+                    scalar.rotateRange(side, from, to);
+                    vector.rotateRange(side, from, to);
+                } else {
+                    scalar.rotate(side, from);
+                    vector.rotate(side, from);
+                }
+            }
+            Assertions.assertEquals(scalar.show(), vector.show());
+        }
+    }
+
+    @Test
+    @Tag("correctness")
+    @DisplayName("Checks whether the rotation callbacks get the caller's sides and layers after whole-cube turns.")
+    public void Test36() {
+        int size = 4;
+        for (int mode = 0; mode < 2; mode++) {
+            CallbackPairs pairs = new CallbackPairs(size);
+            Cube cube = pairs.newCube();
+            if (mode == 1)
+                cube.enableRegionScheduling(2);
+            try {
+                for (int turn = 0; turn < 6; turn++) {
+                    cube.rotateRange(turn, 0, size - 1);
+                    Assertions.assertEquals(size, pairs.before.size());
+                    pairs.assertPaired();
+                    for (int side = 0; side < 6; side++) {
+                        for (int layer = 0; layer < size; layer++) {
+                            cube.rotate(side, layer);
+                            Assertions.assertArrayEquals(new int[]{side, layer}, pairs.before.get(pairs.before.size() - 1));
+                        }
+                    }
+                    pairs.assertPaired();
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Test
+    @Tag("concurrency")
+    @DisplayName("Checks whether a snapshot on a single worker reads other cubes while one waits for admission.")
+    public void Test37() {
+        // The rotation of the first cube waits until the last cube is shown.
+        Semaphore hold = new Semaphore(0);
+        Semaphore rotating = new Semaphore(0);
+        List<Cube> cubes = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            boolean last = i == 7;
+            cubes.add(new Cube(3,
+                    (x, y) -> {
+                        rotating.release();
+                        try {
+                            hold.acquire();
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                        }
+                    },
+                    (x, y) -> {},
+                    () -> {
+                        if (last)
+                            hold.release();
+                    },
+                    () -> {}
+            ));
+        }
+        ForkJoinPool pool = new ForkJoinPool(1);
+        CubeSnapshots snapshots = new CubeSnapshots(pool);
+        Thread rotation = new Thread(() -> {
+            try {
+                cubes.get(0).rotate(0, 0);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        Thread snapshot = new Thread(() -> {
+            try {
+                snapshots.snapshot(cubes);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        try {
+            rotation.start();
+            rotating.acquire();
+            snapshot.start();
+            snapshot.join(10_000);
+            boolean finished = !snapshot.isAlive();
+            hold.release();
+            snapshot.join();
+            rotation.join();
+            Assertions.assertTrue(finished);
+            Assertions.assertEquals(cubes.get(0).show(), snapshots.show(0));
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    @Tag("concurrency")
+    @DisplayName("Checks whether operations are turned away once enough of them queue for admission.")
+    public void Test38() {
+        for (int mode = 0; mode < 4; mode++) {
+            Semaphore hold = new Semaphore(0);
+            AtomicInteger admitted = new AtomicInteger(0);
+            AtomicInteger rotations = new AtomicInteger(0);
+            Cube cube = new Cube(new ArrayFaceletStore(3), (x, y) -> rotations.incrementAndGet(), (x, y) -> {},
+                    () -> {}, () -> {}, () -> {
+                if (admitted.incrementAndGet() == 1)
+                    hold.acquireUninterruptibly();
+            });
+            // Modes 1 and 3 spin before parking, modes 2 and 3 queue in front of the lanes.
+            if (mode % 2 == 1)
+                cube.setWaitStrategy(WaitStrategy.ADAPTIVE);
+            if (mode >= 2)
+                cube.enablePriorityLanes(4);
+            cube.setAdmissionQueueLimit(2);
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                threads.add(new Thread(() -> {
+                    try {
+                        cube.rotate(0, 1);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }));
+            }
+            try {
+                threads.get(0).start();
+                while (admitted.get() == 0)
+                    Thread.sleep(1);
+                // The first rotation holds the admission, two more queue behind it.
+                for (Thread thread : threads.subList(1, 3)) {
+                    thread.start();
+                    while (thread.getState() != Thread.State.WAITING)
+                        Thread.sleep(1);
+                }
+                Assertions.assertThrows(RejectedExecutionException.class, () -> cube.rotate(1, 0));
+                Assertions.assertThrows(RejectedExecutionException.class, cube::show);
+                Assertions.assertEquals(1, admitted.get());
+                cube.setAdmissionQueueLimit(0);
+                hold.release();
+                for (Thread thread : threads)
+                    thread.join();
+                cube.rotate(1, 0);
+                Assertions.assertEquals(4, rotations.get());
+                Assertions.assertThrows(IllegalArgumentException.class, () -> cube.setAdmissionQueueLimit(-1));
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 }
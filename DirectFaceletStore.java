@@ -0,0 +1,97 @@
+package concurrentcube;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Off-heap layout: one byte per facelet, one buffer per side, outside of
+ * the Java heap so that the collector never scans or copies the facelets.
+ * The buffers are either direct memory or mapped from a file, the latter
+ * lets the cube grow beyond physical memory and leaves paging to the OS.
+ * A single side is limited to Integer.MAX_VALUE facelets (size <= 46340).
+ */
+public class DirectFaceletStore implements FaceletStore {
+    private final int size;
+    private final ByteBuffer[] faces;
+    private final FileChannel channel;
+
+    public DirectFaceletStore(int size) {
+        this.size = size;
+        this.faces = new ByteBuffer[NUMBER_OF_SIDES];
+        this.channel = null;
+        for (int i = 0; i < NUMBER_OF_SIDES; i++)
+            faces[i] = ByteBuffer.allocateDirect(faceBytes(size));
+        fill();
+    }
+
+    // File-backed store, the file is created or overwritten with a solved cube.
+    public DirectFaceletStore(int size, Path file) {
+        this.size = size;
+        this.faces = new ByteBuffer[NUMBER_OF_SIDES];
+        try {
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long faceBytes = faceBytes(size);
+            for (int i = 0; i < NUMBER_OF_SIDES; i++)
+                faces[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * faceBytes, faceBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        fill();
+    }
+
+    private static int faceBytes(int size) {
+        long bytes = (long) size * size;
+        if (bytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Cube of size " + size + " does not fit in byte buffers");
+        return (int) bytes;
+    }
+
+    private void fill() {
+        for (int i = 0; i < NUMBER_OF_SIDES; i++) {
+            for (int j = 0; j < size * size; j++) {
+                faces[i].put(j, (byte) i);
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int get(int side, int row, int column) {
+        return faces[side].get(row * size + column);
+    }
+
+    @Override
+    public void set(int side, int row, int column, int colour) {
+        faces[side].put(row * size + column, (byte) colour);
+    }
+
+    @Override
+    public void export(int side, byte[] dst, int offset) {
+        faces[side].get(0, dst, offset, size * size);
+    }
+
+    // Java 17 has no supported way to free a direct or mapped buffer on demand,
+    // the memory is returned once the buffers become unreachable. Closing
+    // drops every reference to them and closes the backing file.
+    @Override
+    public void close() {
+        for (int i = 0; i < NUMBER_OF_SIDES; i++)
+            faces[i] = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
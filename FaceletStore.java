@@ -0,0 +1,143 @@
+package concurrentcube;
+
+/**
+ * Storage of the 6 * size * size facelets behind a Cube. Rotation kernels
+ * only use this surface, so the layout and the memory it lives in can be
+ * swapped without touching the concurrency protocol.
+ * Operations on disjoint strips and faces may be called concurrently.
+ * Only size, get and set are required, the remaining operations have
+ * generic implementations that a layout can replace with faster ones.
+ * Strips are encoded as described in Strip.
+ */
+public interface FaceletStore {
+    int NUMBER_OF_SIDES = 6;
+    int FACE_TILE = 32;
+
+    int size();
+
+    int get(int side, int row, int column);
+
+    void set(int side, int row, int column, int colour);
+
+    default int getInStrip(int strip, int k) {
+        int position = Strip.isReversed(strip) ? size() - 1 - k : k;
+        if (Strip.isVertical(strip))
+            return get(Strip.side(strip), position, Strip.index(strip));
+        return get(Strip.side(strip), Strip.index(strip), position);
+    }
+
+    default void setInStrip(int strip, int k, int colour) {
+        int position = Strip.isReversed(strip) ? size() - 1 - k : k;
+        if (Strip.isVertical(strip))
+            set(Strip.side(strip), position, Strip.index(strip), colour);
+        else
+            set(Strip.side(strip), Strip.index(strip), position, colour);
+    }
+
+    default void readStrip(int strip, int[] dst) {
+        for (int k = 0; k < size(); k++)
+            dst[k] = getInStrip(strip, k);
+    }
+
+    default void writeStrip(int strip, int[] src) {
+        for (int k = 0; k < size(); k++)
+            setInStrip(strip, k, src[k]);
+    }
+
+    // Moves the contents of strip a into b, b into c, c into d and d into a.
+    default void cycle(int a, int b, int c, int d) {
+        cycle(a, b, c, d, 0, size());
+    }
+
+    // The same as cycle, restricted to positions from (inclusive) to to (exclusive) of each strip.
+    default void cycle(int a, int b, int c, int d, int from, int to) {
+        for (int k = from; k < to; k++) {
+            int tempD = getInStrip(d, k);
+            setInStrip(d, k, getInStrip(c, k));
+            setInStrip(c, k, getInStrip(b, k));
+            setInStrip(b, k, getInStrip(a, k));
+            setInStrip(a, k, tempD);
+        }
+    }
+
+    // Cycles several groups of four strips, given as {a, b, c, d} like cycle.
+    // Walks FACE_TILE positions of FACE_TILE groups at a time, so both the
+    // rows and the columns of a wide band are moved block by block while
+    // the block is still cached.
+    default void cycleAll(int[][] groups) {
+        int size = size();
+        for (int kBlock = 0; kBlock < size; kBlock += FACE_TILE) {
+            int kEnd = Math.min(kBlock + FACE_TILE, size);
+            for (int gBlock = 0; gBlock < groups.length; gBlock += FACE_TILE) {
+                int gEnd = Math.min(gBlock + FACE_TILE, groups.length);
+                for (int g = gBlock; g < gEnd; g++) {
+                    int[] group = groups[g];
+                    for (int k = kBlock; k < kEnd; k++) {
+                        int tempD = getInStrip(group[3], k);
+                        setInStrip(group[3], k, getInStrip(group[2], k));
+                        setInStrip(group[2], k, getInStrip(group[1], k));
+                        setInStrip(group[1], k, getInStrip(group[0], k));
+                        setInStrip(group[0], k, tempD);
+                    }
+                }
+            }
+        }
+    }
+
+    // Both quarter-turns work in place on 4-cycles of facelets. The quadrant
+    // is walked in FACE_TILE x FACE_TILE blocks, so each of the four corners
+    // of a cycle stays within a small block of rows that is still cached.
+    default void turnClockwise(int side) {
+        int size = size();
+        int last = size - 1;
+        for (int iBlock = 0; iBlock < size / 2; iBlock += FACE_TILE) {
+            int iEnd = Math.min(iBlock + FACE_TILE, size / 2);
+            for (int jBlock = 0; jBlock < (size + 1) / 2; jBlock += FACE_TILE) {
+                int jEnd = Math.min(jBlock + FACE_TILE, (size + 1) / 2);
+                for (int i = iBlock; i < iEnd; i++) {
+                    for (int j = jBlock; j < jEnd; j++) {
+                        int temp = get(side, last - j, i);
+                        set(side, last - j, i, get(side, last - i, last - j));
+                        set(side, last - i, last - j, get(side, j, last - i));
+                        set(side, j, last - i, get(side, i, j));
+                        set(side, i, j, temp);
+                    }
+                }
+            }
+        }
+    }
+
+    default void turnCounterclockwise(int side) {
+        int size = size();
+        int last = size - 1;
+        for (int iBlock = 0; iBlock < size / 2; iBlock += FACE_TILE) {
+            int iEnd = Math.min(iBlock + FACE_TILE, size / 2);
+            for (int jBlock = 0; jBlock < (size + 1) / 2; jBlock += FACE_TILE) {
+                int jEnd = Math.min(jBlock + FACE_TILE, (size + 1) / 2);
+                for (int i = iBlock; i < iEnd; i++) {
+                    for (int j = jBlock; j < jEnd; j++) {
+                        int temp = get(side, i, j);
+                        set(side, i, j, get(side, j, last - i));
+                        set(side, j, last - i, get(side, last - i, last - j));
+                        set(side, last - i, last - j, get(side, last - j, i));
+                        set(side, last - j, i, temp);
+                    }
+                }
+            }
+        }
+    }
+
+    // Copies the colours of a side into dst row by row, starting at offset.
+    default void export(int side, byte[] dst, int offset) {
+        int size = size();
+        for (int j = 0; j < size; j++) {
+            for (int k = 0; k < size; k++) {
+                dst[offset++] = (byte) get(side, j, k);
+            }
+        }
+    }
+
+    // Releases memory or files held by the store. The store must not be used afterwards.
+    default void close() {
+    }
+}
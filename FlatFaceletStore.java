@@ -0,0 +1,124 @@
+package concurrentcube;
+
+import java.lang.reflect.Constructor;
+
+/**
+ * Flat on-heap layout: a single byte array, side after side, each side
+ * row by row. Limited to 6 * size * size <= Integer.MAX_VALUE.
+ * Strip cycles run on the Vector API when VectorKernels (under vector/) is
+ * built and jdk.incubator.vector is loaded, and one facelet at a time
+ * otherwise. Face turns stay on the tiled scalar kernels: their columns
+ * would need byte gathers, which cost more than the scalar loop.
+ */
+public class FlatFaceletStore implements FaceletStore {
+    // Strip cycles over the facelets array, implemented by VectorKernels.
+    interface Kernels {
+        void cycle(int a, int b, int c, int d, int from, int to);
+    }
+
+    // Takes (size, facelets), null when the Vector API or the class is missing.
+    private static final Constructor<?> VECTOR_KERNELS = findVectorKernels();
+    static final boolean VECTOR = VECTOR_KERNELS != null;
+
+    private final int size;
+    private final byte[] facelets;
+    // Null without the Vector API.
+    private final Kernels vectors;
+
+    public FlatFaceletStore(int size) {
+        this(size, VECTOR);
+    }
+
+    // Vectorized or not regardless of the module, for comparing the two paths.
+    FlatFaceletStore(int size, boolean vector) {
+        long length = (long) NUMBER_OF_SIDES * size * size;
+        if (length > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Cube of size " + size + " does not fit in a byte array");
+        this.size = size;
+        this.facelets = new byte[(int) length];
+        for (int i = 0; i < NUMBER_OF_SIDES; i++) {
+            for (int j = 0; j < size * size; j++) {
+                facelets[i * size * size + j] = (byte) i;
+            }
+        }
+        this.vectors = vector && VECTOR ? newVectorKernels(size, facelets) : null;
+    }
+
+    // Looked up by name, so the main sources compile without the module.
+    private static Constructor<?> findVectorKernels() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty())
+            return null;
+        try {
+            return Class.forName("concurrentcube.VectorKernels").getDeclaredConstructor(int.class, byte[].class);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private static Kernels newVectorKernels(int size, byte[] facelets) {
+        try {
+            return (Kernels) VECTOR_KERNELS.newInstance(size, facelets);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot set up the Vector API kernels", e);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int get(int side, int row, int column) {
+        return facelets[(side * size + row) * size + column];
+    }
+
+    @Override
+    public void set(int side, int row, int column, int colour) {
+        facelets[(side * size + row) * size + column] = (byte) colour;
+    }
+
+    @Override
+    public void readStrip(int strip, int[] dst) {
+        if (!Strip.isPlainRow(strip)) {
+            FaceletStore.super.readStrip(strip, dst);
+            return;
+        }
+        int start = (Strip.side(strip) * size + Strip.index(strip)) * size;
+        for (int k = 0; k < size; k++)
+            dst[k] = facelets[start + k];
+    }
+
+    @Override
+    public void cycle(int a, int b, int c, int d, int from, int to) {
+        if (vectors != null)
+            vectors.cycle(a, b, c, d, from, to);
+        else
+            FaceletStore.super.cycle(a, b, c, d, from, to);
+    }
+
+    @Override
+    public void cycleAll(int[][] groups) {
+        if (vectors == null) {
+            FaceletStore.super.cycleAll(groups);
+            return;
+        }
+        for (int[] group : groups)
+            vectors.cycle(group[0], group[1], group[2], group[3], 0, size);
+    }
+
+    @Override
+    public void export(int side, byte[] dst, int offset) {
+        System.arraycopy(facelets, side * size * size, dst, offset, size * size);
+    }
+
+    // Replaces the whole state with a copy of the given array, in the layout above.
+    void load(byte[] state) {
+        System.arraycopy(state, 0, facelets, 0, facelets.length);
+    }
+
+    // Copy of the whole state, in the layout above.
+    byte[] pack() {
+        return facelets.clone();
+    }
+}
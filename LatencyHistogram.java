@@ -0,0 +1,78 @@
+package concurrentcube;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds. Buckets grow by powers
+ * of two, each split into SUB_BUCKETS linear steps, so percentiles are
+ * accurate to about 12%.
+ */
+class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS)
+            return (int) Math.max(nanos, 0);
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int fraction = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + fraction;
+    }
+
+    // Largest value that still falls into the given bucket.
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long fraction = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + fraction + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    void record(long nanos) {
+        counts.incrementAndGet(bucket(nanos));
+    }
+
+    /**
+     * Moves all recorded values into a plain array and clears the histogram,
+     * so that consecutive snapshots describe consecutive intervals.
+     */
+    long[] drain() {
+        long[] result = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            result[i] = counts.getAndSet(i, 0);
+        return result;
+    }
+
+    // Copy of the recorded values that leaves the histogram as it is.
+    long[] snapshot() {
+        long[] result = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            result[i] = counts.get(i);
+        return result;
+    }
+
+    static long count(long[] drained) {
+        long total = 0;
+        for (long c : drained)
+            total += c;
+        return total;
+    }
+
+    // Upper bound of the value below which the given fraction of samples fall.
+    static long percentile(long[] drained, double fraction) {
+        long total = count(drained);
+        if (total == 0)
+            return 0;
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += drained[i];
+            if (seen >= rank && drained[i] > 0)
+                return upperBound(i);
+        }
+        return upperBound(BUCKETS - 1);
+    }
+}
@@ -0,0 +1,250 @@
+package concurrentcube;
+
+import java.util.Arrays;
+
+/**
+ * Cube notation compiled for a given cube size into a compact list of
+ * instructions, each one an int holding (layer, side, turns): turn the
+ * layer of the side by that many clockwise quarter-turns, 1 to 3.
+ *
+ * Notation: faces U L F R B D, each optionally followed by w for a wide
+ * turn, a repeat count and ' for the opposite direction, e.g. R U R' U2.
+ * A number in front selects the n-th layer (3R) or, with w, the n outer
+ * layers (3Rw); Rw alone turns 2 layers, as do lowercase r u f l b d.
+ * M, E and S turn all inner layers in the direction of L, D and F;
+ * x, y and z turn the whole cube in the direction of R, U and F.
+ * Whitespace between moves is optional.
+ */
+public class MoveProgram {
+    private static final int TURN_BITS = 2;
+    private static final int SIDE_BITS = 3;
+    private static final String FACES = "ULFRBD";
+
+    private final int size;
+    private final int[] code;
+
+    private MoveProgram(int size, int[] code) {
+        this.size = size;
+        this.code = code;
+    }
+
+    private static int encode(int side, int layer, int turns) {
+        return (layer << (SIDE_BITS + TURN_BITS)) | (side << TURN_BITS) | turns;
+    }
+
+    public int length() {
+        return code.length;
+    }
+
+    public int getSide(int i) {
+        return (code[i] >>> TURN_BITS) & ((1 << SIDE_BITS) - 1);
+    }
+
+    public int getLayer(int i) {
+        return code[i] >>> (SIDE_BITS + TURN_BITS);
+    }
+
+    public int getTurns(int i) {
+        return code[i] & ((1 << TURN_BITS) - 1);
+    }
+
+    /**
+     * Compiles notation for a cube of the given size. Throws
+     * IllegalArgumentException naming the position of the first bad move.
+     */
+    public static MoveProgram compile(String notation, int size) {
+        int[] code = new int[16];
+        int length = 0;
+        int i = 0;
+        while (i < notation.length()) {
+            char c = notation.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int prefix = 0;
+            while (i < notation.length() && Character.isDigit(notation.charAt(i)))
+                prefix = prefix * 10 + (notation.charAt(i++) - '0');
+            if (i == notation.length())
+                throw new IllegalArgumentException("Move expected at " + start + " in " + notation);
+            char move = notation.charAt(i++);
+            boolean wide = false;
+            if (i < notation.length() && notation.charAt(i) == 'w') {
+                wide = true;
+                i++;
+            }
+            int turns = 1;
+            if (i < notation.length() && Character.isDigit(notation.charAt(i))) {
+                turns = 0;
+                while (i < notation.length() && Character.isDigit(notation.charAt(i)))
+                    turns = turns * 10 + (notation.charAt(i++) - '0');
+            }
+            if (i < notation.length() && notation.charAt(i) == '\'') {
+                turns = 4 - turns % 4;
+                i++;
+            }
+            turns %= 4;
+
+            int side;
+            int from;
+            int to;
+            int face = FACES.indexOf(Character.toUpperCase(move));
+            if (face >= 0) {
+                side = face;
+                boolean lowercase = Character.isLowerCase(move);
+                if (lowercase && (wide || prefix > 0))
+                    throw new IllegalArgumentException("Unexpected modifier of " + move + " at " + start + " in " + notation);
+                int layers = lowercase ? 2 : prefix > 0 ? prefix : wide ? 2 : 1;
+                if (layers > size)
+                    throw new IllegalArgumentException("Layer " + layers + " at " + start + " is outside of a cube of size " + size);
+                from = wide || lowercase ? 0 : layers - 1;
+                to = layers;
+            } else {
+                if (wide || prefix > 0)
+                    throw new IllegalArgumentException("Unexpected modifier of " + move + " at " + start + " in " + notation);
+                switch (move) {
+                    case 'M':
+                        side = CubeKernels.LEFT;
+                        break;
+                    case 'E':
+                        side = CubeKernels.BOTTOM;
+                        break;
+                    case 'S':
+                        side = CubeKernels.FRONT;
+                        break;
+                    case 'x':
+                        side = CubeKernels.RIGHT;
+                        break;
+                    case 'y':
+                        side = CubeKernels.TOP;
+                        break;
+                    case 'z':
+                        side = CubeKernels.FRONT;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown move " + move + " at " + start + " in " + notation);
+                }
+                boolean slice = Character.isUpperCase(move);
+                from = slice ? 1 : 0;
+                to = slice ? size - 1 : size;
+            }
+            if (turns == 0)
+                continue;
+            for (int layer = from; layer < to; layer++) {
+                if (length == code.length)
+                    code = Arrays.copyOf(code, 2 * length);
+                code[length++] = encode(side, layer, turns);
+            }
+        }
+        return new MoveProgram(size, Arrays.copyOf(code, length));
+    }
+
+    // Top, left and front stand for their axes, like the layer indices of Cube.
+    private static boolean isPrimary(int side) {
+        return side == CubeKernels.TOP || side == CubeKernels.LEFT || side == CubeKernels.FRONT;
+    }
+
+    /**
+     * Equivalent program with at most one instruction per layer in every run
+     * of moves on one axis. Moves of one axis commute, so such a run is
+     * rewritten to primary sides (turning a layer of the opposite side is
+     * turning layer size - 1 - layer of the primary one the other way),
+     * turns of a layer are added up modulo 4 and the layers are sorted.
+     */
+    public MoveProgram optimize() {
+        int[] result = new int[code.length];
+        int length = 0;
+        int[] turns = new int[size];
+        boolean[] used = new boolean[size];
+        int[] touched = new int[size];
+        int i = 0;
+        while (i < code.length) {
+            int primary = isPrimary(getSide(i)) ? getSide(i) : CubeKernels.getOppositeSide(getSide(i));
+            int count = 0;
+            int end = i;
+            while (end < code.length && (getSide(end) == primary
+                    || getSide(end) == CubeKernels.getOppositeSide(primary))) {
+                int layer = getLayer(end);
+                int quarterTurns = getTurns(end);
+                if (getSide(end) != primary) {
+                    layer = size - 1 - layer;
+                    quarterTurns = 4 - quarterTurns;
+                }
+                turns[layer] = (turns[layer] + quarterTurns) % 4;
+                if (!used[layer]) {
+                    used[layer] = true;
+                    touched[count++] = layer;
+                }
+                end++;
+            }
+            Arrays.sort(touched, 0, count);
+            for (int k = 0; k < count; k++) {
+                int layer = touched[k];
+                if (turns[layer] != 0)
+                    result[length++] = encode(primary, layer, turns[layer]);
+                turns[layer] = 0;
+                used[layer] = false;
+            }
+            i = end;
+        }
+        return new MoveProgram(size, Arrays.copyOf(result, length));
+    }
+
+    // Quarter-turns of instructions from..to-1 as rotate(side, layer) arguments,
+    // three clockwise quarter-turns become one turn of the opposite layer.
+    private int quarterTurns(int from, int to, int[] sides, int[] layers) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            int turns = getTurns(i);
+            if (turns == 3) {
+                sides[count] = CubeKernels.getOppositeSide(getSide(i));
+                layers[count++] = size - 1 - getLayer(i);
+                continue;
+            }
+            for (int t = 0; t < turns; t++) {
+                sides[count] = getSide(i);
+                layers[count++] = getLayer(i);
+            }
+        }
+        return count;
+    }
+
+    private int axisRunEnd(int from) {
+        int side = getSide(from);
+        int end = from + 1;
+        while (end < code.length && (getSide(end) == side || getSide(end) == CubeKernels.getOppositeSide(side)))
+            end++;
+        return end;
+    }
+
+    /**
+     * Runs the program on the cube, each run of moves on one axis admitted
+     * at once. Callbacks and the change log see every quarter-turn.
+     */
+    public void run(Cube cube) throws InterruptedException {
+        if (cube.getSize() != size)
+            throw new IllegalArgumentException("Program for size " + size + " run on a cube of size " + cube.getSize());
+        int i = 0;
+        while (i < code.length) {
+            int end = axisRunEnd(i);
+            int[] sides = new int[2 * (end - i)];
+            int[] layers = new int[2 * (end - i)];
+            int count = quarterTurns(i, end, sides, layers);
+            cube.rotateAxisGroup(Arrays.copyOf(sides, count), Arrays.copyOf(layers, count));
+            i = end;
+        }
+    }
+
+    public void run(SequentialCube cube) {
+        if (cube.getSize() != size)
+            throw new IllegalArgumentException("Program for size " + size + " run on a cube of size " + cube.getSize());
+        int[] sides = new int[2];
+        int[] layers = new int[2];
+        for (int i = 0; i < code.length; i++) {
+            int count = quarterTurns(i, i + 1, sides, layers);
+            for (int t = 0; t < count; t++)
+                cube.rotate(sides[t], layers[t]);
+        }
+    }
+}
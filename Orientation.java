@@ -0,0 +1,340 @@
+package concurrentcube;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable frame between the sides a caller sees (logical) and the sides
+ * of the FaceletStore (physical), changed by turning the whole cube.
+ * Logical side s is physical side side(s), with coordinates mapped by an
+ * affine map in units of size - 1, so a frame works for every size:
+ *   physical row    = a * row + b * column + e * (size - 1)
+ *   physical column = f * row + g * column + h * (size - 1)
+ * stored as {a, b, e, f, g, h}. The maps of single whole-cube turns are
+ * found once by turning a 2x2 cube with marked facelets.
+ */
+final class Orientation {
+    static final Orientation IDENTITY = identity();
+    // TURNS[s] maps positions after a whole-cube turn in the direction of side s
+    // to the positions their facelets came from.
+    private static final Orientation[] TURNS = simulateTurns();
+    // All 24 frames, IDENTITY first.
+    private static final Orientation[] ALL = allFrames();
+    // TO_TOP[s] is a frame taking side s to TOP, TOP_TURNS[t] the t-th power
+    // of a quarter turn about the top-bottom axis. See key.
+    private static final Orientation[] TO_TOP = toTop();
+    private static final Orientation[] TOP_TURNS = topTurns();
+    // KEY_SHIFTS[(s * 4 + k) * 6 + f] is where field f of a base key goes when
+    // the key is placed on side s from the base position turned the k-th way
+    // listed in key.
+    private static final int[] KEY_SHIFTS = keyShifts();
+    private static final int FIELD_BITS = 10;
+    private static final long FIELD_MASK = (1L << FIELD_BITS) - 1;
+    private static final long SPARE_BITS = -1L << (CubeKernels.NUMBER_OF_SIDES * FIELD_BITS);
+
+    private final int[] sides;
+    private final int[][] maps;
+
+    private Orientation(int[] sides, int[][] maps) {
+        this.sides = sides;
+        this.maps = maps;
+    }
+
+    private static Orientation identity() {
+        int[] sides = new int[CubeKernels.NUMBER_OF_SIDES];
+        int[][] maps = new int[CubeKernels.NUMBER_OF_SIDES][];
+        for (int s = 0; s < sides.length; s++) {
+            sides[s] = s;
+            maps[s] = new int[]{1, 0, 0, 0, 1, 0};
+        }
+        return new Orientation(sides, maps);
+    }
+
+    private static Orientation[] simulateTurns() {
+        Orientation[] result = new Orientation[CubeKernels.NUMBER_OF_SIDES];
+        for (int turn = 0; turn < result.length; turn++) {
+            // Colours show where every facelet came from: first its side,
+            // then its position 2 * row + column on the side.
+            CubeKernels bySide = new CubeKernels(new FlatFaceletStore(2));
+            bySide.rotateRange(turn, 0, 1);
+            CubeKernels byPosition = new CubeKernels(new FlatFaceletStore(2));
+            for (int s = 0; s < CubeKernels.NUMBER_OF_SIDES; s++) {
+                for (int position = 0; position < 4; position++)
+                    byPosition.set(s, position / 2, position % 2, position);
+            }
+            byPosition.rotateRange(turn, 0, 1);
+
+            int[] sides = new int[CubeKernels.NUMBER_OF_SIDES];
+            int[][] maps = new int[CubeKernels.NUMBER_OF_SIDES][];
+            FaceletStore store = byPosition.store();
+            for (int s = 0; s < sides.length; s++) {
+                sides[s] = bySide.store().get(s, 0, 0);
+                int origin = store.get(s, 0, 0);
+                int down = store.get(s, 1, 0);
+                int across = store.get(s, 0, 1);
+                int e = origin / 2;
+                int h = origin % 2;
+                maps[s] = new int[]{down / 2 - e, across / 2 - e, e, down % 2 - h, across % 2 - h, h};
+            }
+            result[turn] = new Orientation(sides, maps);
+        }
+        return result;
+    }
+
+    private static Orientation[] allFrames() {
+        List<Orientation> frames = new ArrayList<>();
+        frames.add(IDENTITY);
+        for (int i = 0; i < frames.size(); i++) {
+            for (Orientation turn : TURNS) {
+                Orientation next = frames.get(i).then(turn);
+                if (frames.stream().noneMatch(next::sameAs))
+                    frames.add(next);
+            }
+        }
+        return frames.toArray(new Orientation[0]);
+    }
+
+    private static Orientation[] toTop() {
+        Orientation[] result = new Orientation[CubeKernels.NUMBER_OF_SIDES];
+        for (int s = 0; s < result.length; s++) {
+            for (Orientation frame : ALL) {
+                if (result[s] == null && frame.sides[s] == CubeKernels.TOP)
+                    result[s] = frame;
+            }
+        }
+        return result;
+    }
+
+    private static Orientation[] topTurns() {
+        Orientation[] result = {IDENTITY, TURNS[CubeKernels.TOP], null, null};
+        for (int t = 2; t < result.length; t++)
+            result[t] = result[t - 1].then(TURNS[CubeKernels.TOP]);
+        return result;
+    }
+
+    private static int[] keyShifts() {
+        int[] result = new int[CubeKernels.NUMBER_OF_SIDES * TOP_TURNS.length * CubeKernels.NUMBER_OF_SIDES];
+        for (int s = 0; s < CubeKernels.NUMBER_OF_SIDES; s++) {
+            Orientation fromTop = TO_TOP[s].inverse();
+            for (int k = 0; k < TOP_TURNS.length; k++) {
+                // The quarter turn of TOP taking the k-th turn of (0, 1) on a
+                // 5x5 face back to (0, 1).
+                int[] turned = turnOnTop(k, 0, 1, 4);
+                int t = 0;
+                while (TOP_TURNS[t].row(CubeKernels.TOP, turned[0], turned[1], 5) != 0
+                        || TOP_TURNS[t].column(CubeKernels.TOP, turned[0], turned[1], 5) != 1)
+                    t++;
+                int[] sides = fromTop.then(TOP_TURNS[t]).sides;
+                for (int f = 0; f < sides.length; f++)
+                    result[(s * TOP_TURNS.length + k) * CubeKernels.NUMBER_OF_SIDES + f] = sides[f] * FIELD_BITS;
+            }
+        }
+        return result;
+    }
+
+    // The k-th of the four quarter turns of a face listed in key.
+    private static int[] turnOnTop(int k, int row, int column, int last) {
+        switch (k) {
+            case 0:
+                return new int[]{row, column};
+            case 1:
+                return new int[]{column, last - row};
+            case 2:
+                return new int[]{last - row, last - column};
+            default:
+                return new int[]{last - column, row};
+        }
+    }
+
+    // Frame applying other first, then this one.
+    private Orientation then(Orientation other) {
+        int[] newSides = new int[CubeKernels.NUMBER_OF_SIDES];
+        int[][] newMaps = new int[CubeKernels.NUMBER_OF_SIDES][];
+        for (int s = 0; s < newSides.length; s++) {
+            int from = other.sides[s];
+            newSides[s] = sides[from];
+            newMaps[s] = compose(maps[from], other.maps[s]);
+        }
+        return new Orientation(newSides, newMaps);
+    }
+
+    private Orientation inverse() {
+        for (Orientation frame : ALL) {
+            if (frame.then(this).sameAs(IDENTITY))
+                return frame;
+        }
+        throw new AssertionError("No inverse frame");
+    }
+
+    private boolean sameAs(Orientation other) {
+        return Arrays.equals(sides, other.sides) && Arrays.deepEquals(maps, other.maps);
+    }
+
+    /**
+     * Zobrist key of a colour at a position (see CubeKernels.key) that turns
+     * with the cube: the key of the position a frame maps p to is the key of
+     * p with its six 10-bit fields moved to the sides the frame moves them
+     * to. Each position is placed as a turn of a base position on TOP, in
+     * the quadrant the face turns walk, or the centre; the base key is mixed
+     * from that position and the colour. The centre is left in place by the
+     * quarter turns of TOP, so its fields of the four sides around it are equal.
+     */
+    static long key(int size, int side, int row, int column, int colour) {
+        int[] map = TO_TOP[side].maps[side];
+        int last = size - 1;
+        int r = map[0] * row + map[1] * column + map[2] * last;
+        int c = map[3] * row + map[4] * column + map[5] * last;
+        int shifts = side * TOP_TURNS.length * CubeKernels.NUMBER_OF_SIDES;
+        if (2 * r == last && 2 * c == last) {
+            long base = mix((((long) r * size + c) * CubeKernels.NUMBER_OF_SIDES + colour) * 2 + 2);
+            long around = base >>> FIELD_BITS & FIELD_MASK;
+            for (int f = CubeKernels.LEFT; f <= CubeKernels.BACK; f++)
+                base = base & ~(FIELD_MASK << f * FIELD_BITS) | around << f * FIELD_BITS;
+            return placeFields(base, shifts);
+        }
+        // The one of (r, c), (c, last - r), (last - r, last - c) and
+        // (last - c, r) in the quadrant.
+        int baseRow = r;
+        int baseColumn = c;
+        if (2 * r >= last || 2 * c >= size) {
+            shifts += CubeKernels.NUMBER_OF_SIDES;
+            baseRow = c;
+            baseColumn = last - r;
+            if (2 * baseRow >= last || 2 * baseColumn >= size) {
+                shifts += CubeKernels.NUMBER_OF_SIDES;
+                baseRow = last - r;
+                baseColumn = last - c;
+                if (2 * baseRow >= last || 2 * baseColumn >= size) {
+                    shifts += CubeKernels.NUMBER_OF_SIDES;
+                    baseRow = last - c;
+                    baseColumn = r;
+                }
+            }
+        }
+        long base = mix((((long) baseRow * size + baseColumn) * CubeKernels.NUMBER_OF_SIDES + colour) * 2 + 1);
+        return placeFields(base, shifts);
+    }
+
+    // Finalizer of SplitMix64, a bijection that keeps only 0 in place, which
+    // the callers never pass.
+    private static long mix(long z) {
+        z *= 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static long placeFields(long key, int shifts) {
+        long result = key & SPARE_BITS;
+        for (int f = 0; f < CubeKernels.NUMBER_OF_SIDES; f++)
+            result |= (key >>> f * FIELD_BITS & FIELD_MASK) << KEY_SHIFTS[shifts + f];
+        return result;
+    }
+
+    /**
+     * State hash of what this frame shows, from the hash of the store.
+     * Keys turn with the cube (see key), so the logical side f has the
+     * fields of physical side side(f), and this takes O(1).
+     */
+    long logicalHash(long physicalHash) {
+        long result = physicalHash & SPARE_BITS;
+        for (int f = 0; f < sides.length; f++)
+            result |= (physicalHash >>> sides[f] * FIELD_BITS & FIELD_MASK) << f * FIELD_BITS;
+        return result;
+    }
+
+    // Frame of a whole-cube turn in the direction of the side, from IDENTITY.
+    static Orientation turn(int side) {
+        return TURNS[side];
+    }
+
+    boolean isIdentity() {
+        return this == IDENTITY;
+    }
+
+    // Physical side of a logical side.
+    int side(int side) {
+        return sides[side];
+    }
+
+    int row(int side, int row, int column, int size) {
+        int[] map = maps[side];
+        return map[0] * row + map[1] * column + map[2] * (size - 1);
+    }
+
+    int column(int side, int row, int column, int size) {
+        int[] map = maps[side];
+        return map[3] * row + map[4] * column + map[5] * (size - 1);
+    }
+
+    /**
+     * Frame after turning the whole cube in the direction of the given
+     * logical side, that is like rotating all of its layers. The logical
+     * position x then shows what this frame showed at turn(x).
+     */
+    Orientation turned(int side) {
+        Orientation turn = TURNS[side];
+        int[] newSides = new int[CubeKernels.NUMBER_OF_SIDES];
+        int[][] newMaps = new int[CubeKernels.NUMBER_OF_SIDES][];
+        for (int s = 0; s < newSides.length; s++) {
+            int from = turn.sides[s];
+            newSides[s] = sides[from];
+            newMaps[s] = compose(maps[from], turn.maps[s]);
+        }
+        // Four turns in a row come back to IDENTITY and its fast paths.
+        for (int s = 0; s < newSides.length; s++) {
+            if (newSides[s] != s || !Arrays.equals(newMaps[s], IDENTITY.maps[s]))
+                return new Orientation(newSides, newMaps);
+        }
+        return IDENTITY;
+    }
+
+    // Affine map applying inner first, then outer.
+    private static int[] compose(int[] outer, int[] inner) {
+        return new int[]{
+                outer[0] * inner[0] + outer[1] * inner[3],
+                outer[0] * inner[1] + outer[1] * inner[4],
+                outer[0] * inner[2] + outer[1] * inner[5] + outer[2],
+                outer[3] * inner[0] + outer[4] * inner[3],
+                outer[3] * inner[1] + outer[4] * inner[4],
+                outer[3] * inner[2] + outer[4] * inner[5] + outer[5]
+        };
+    }
+
+    int get(FaceletStore store, int side, int row, int column) {
+        int size = store.size();
+        return store.get(sides[side], row(side, row, column, size), column(side, row, column, size));
+    }
+
+    // Physical strip whose k-th element is column k of the given logical row.
+    int rowStrip(int side, int row, int size) {
+        int[] map = maps[side];
+        int last = size - 1;
+        if (map[1] == 0) {
+            int strip = Strip.row(sides[side], map[0] * row + map[2] * last);
+            return map[4] < 0 ? Strip.reversed(strip) : strip;
+        }
+        int strip = Strip.column(sides[side], map[3] * row + map[5] * last);
+        return map[1] < 0 ? Strip.reversed(strip) : strip;
+    }
+
+    // Colours of a logical side row by row into dst, like FaceletStore.export.
+    void export(FaceletStore store, int side, byte[] dst, int offset) {
+        if (isIdentity()) {
+            store.export(side, dst, offset);
+            return;
+        }
+        int size = store.size();
+        byte[] physical = new byte[size * size];
+        store.export(sides[side], physical, 0);
+        int[] map = maps[side];
+        for (int j = 0; j < size; j++) {
+            for (int k = 0; k < size; k++) {
+                int row = map[0] * j + map[1] * k + map[2] * (size - 1);
+                int column = map[3] * j + map[4] * k + map[5] * (size - 1);
+                dst[offset++] = physical[row * size + column];
+            }
+        }
+    }
+}
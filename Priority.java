@@ -0,0 +1,11 @@
+package concurrentcube;
+
+/**
+ * Admission class of a rotation or show, see Cube.enablePriorityLanes.
+ */
+public enum Priority {
+    // Admitted before any waiting NORMAL operation, up to the starvation limit.
+    HIGH,
+    // Everything else, in arrival order.
+    NORMAL
+}
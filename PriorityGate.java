@@ -0,0 +1,105 @@
+package concurrentcube;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Gate in front of mainSemaphore that orders admissions by Priority. One
+ * thread passes at a time and keeps the gate until it has mainSemaphore,
+ * so at most one operation waits there and a HIGH operation only ever
+ * waits behind the current admission and earlier HIGH ones. Each class
+ * is served in arrival order; after starvationLimit HIGH admissions in a
+ * row the oldest waiting NORMAL operation goes first. Also records how
+ * long each class waited for admission.
+ */
+class PriorityGate {
+    private static class Waiter {
+        final Condition turn;
+
+        Waiter(Condition turn) {
+            this.turn = turn;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Waiter> high = new ArrayDeque<>();
+    private final ArrayDeque<Waiter> normal = new ArrayDeque<>();
+    private final int starvationLimit;
+    private final LatencyHistogram[] admissionLatency = new LatencyHistogram[Priority.values().length];
+    private boolean taken = false;
+    // HIGH admissions in a row while NORMAL operations were waiting.
+    private int streak = 0;
+
+    PriorityGate(int starvationLimit) {
+        if (starvationLimit < 1)
+            throw new IllegalArgumentException("Starvation limit must be positive, got " + starvationLimit);
+        this.starvationLimit = starvationLimit;
+        for (int i = 0; i < admissionLatency.length; i++)
+            admissionLatency[i] = new LatencyHistogram();
+    }
+
+    // Waiter that goes next, null if nobody waits.
+    private Waiter next() {
+        if (!high.isEmpty() && (normal.isEmpty() || streak < starvationLimit))
+            return high.peekFirst();
+        return normal.peekFirst();
+    }
+
+    void enter(Priority priority) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            ArrayDeque<Waiter> queue = priority == Priority.HIGH ? high : normal;
+            Waiter waiter = new Waiter(lock.newCondition());
+            queue.addLast(waiter);
+            try {
+                while (taken || next() != waiter)
+                    waiter.turn.await();
+            } catch (InterruptedException e) {
+                queue.remove(waiter);
+                Waiter following = next();
+                if (!taken && following != null)
+                    following.turn.signal();
+                throw e;
+            }
+            queue.removeFirst();
+            if (priority == Priority.HIGH && !normal.isEmpty())
+                streak++;
+            else
+                streak = 0;
+            taken = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void leave() {
+        lock.lock();
+        try {
+            taken = false;
+            Waiter following = next();
+            if (following != null)
+                following.turn.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Operations waiting in front of the gate.
+    int queueLength() {
+        lock.lock();
+        try {
+            return high.size() + normal.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void record(Priority priority, long nanos) {
+        admissionLatency[priority.ordinal()].record(nanos);
+    }
+
+    LatencyHistogram latency(Priority priority) {
+        return admissionLatency[priority.ordinal()];
+    }
+}
@@ -0,0 +1,195 @@
+package concurrentcube;
+
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fine-grained alternative to the axis protocol of Cube. Every side is cut
+ * into tiles of block x block facelets. Operations are admitted one at a
+ * time (Cube does it under mainSemaphore) and take a place in the queue of
+ * every tile they touch; a tile serves its queue strictly in admission
+ * order. A rotation then moves its strips piece by piece, holding only the
+ * tiles of the current piece, so rotations of different axes overlap
+ * everywhere except on the tiles where their strips cross.
+ *
+ * Every tile sees the operations in admission order and every piece stays
+ * within the tiles it holds, so the result is the one of running the
+ * operations sequentially in admission order. An operation only ever waits
+ * for operations admitted before it, so there are no deadlocks.
+ */
+class RegionScheduler {
+    private static final int SPINS = 100;
+    private static final int YIELDS = 100;
+    private static final long PARK_NANOS = 10_000;
+
+    // Places in the queues of a set of tiles.
+    static class Ticket {
+        final int[] tiles;
+        final long[] positions;
+
+        Ticket(int[] tiles, long[] positions) {
+            this.tiles = tiles;
+            this.positions = positions;
+        }
+    }
+
+    // A rotation's places: the turned face (if any) and every tile along its strips.
+    static class RotationTicket {
+        final int side;
+        final int layer;
+        final int[] strips;
+        final Ticket face;
+        // stripTiles[i][m] is the tile holding positions m * block .. (m + 1) * block - 1
+        // of strip i, counted from the start of the row or column.
+        final int[][] stripTiles;
+        final long[][] stripPositions;
+
+        RotationTicket(int side, int layer, int[] strips, Ticket face, int[][] stripTiles, long[][] stripPositions) {
+            this.side = side;
+            this.layer = layer;
+            this.strips = strips;
+            this.face = face;
+            this.stripTiles = stripTiles;
+            this.stripPositions = stripPositions;
+        }
+    }
+
+    private final CubeKernels kernels;
+    private final int size;
+    private final int block;
+    private final int tilesPerLine;
+    // Number of places handed out per tile, only changed by the admitting thread.
+    private final long[] admitted;
+    // Number of operations that are done with each tile.
+    private final AtomicLongArray completed;
+    // Points where some strip enters a new tile, read forwards or reversed.
+    private final int[] cuts;
+
+    RegionScheduler(CubeKernels kernels, int block) {
+        if (block < 1)
+            throw new IllegalArgumentException("Block size must be positive, got " + block);
+        this.kernels = kernels;
+        this.size = kernels.size();
+        this.block = block;
+        this.tilesPerLine = (size + block - 1) / block;
+        this.admitted = new long[CubeKernels.NUMBER_OF_SIDES * tilesPerLine * tilesPerLine];
+        this.completed = new AtomicLongArray(admitted.length);
+        TreeSet<Integer> points = new TreeSet<>();
+        points.add(0);
+        points.add(size);
+        for (int m = 1; m < tilesPerLine; m++) {
+            points.add(m * block);
+            points.add(size - m * block);
+        }
+        this.cuts = points.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private int tile(int side, int row, int column) {
+        return (side * tilesPerLine + row / block) * tilesPerLine + column / block;
+    }
+
+    int[] faceTiles(int side) {
+        int[] result = new int[tilesPerLine * tilesPerLine];
+        for (int i = 0; i < result.length; i++)
+            result[i] = side * result.length + i;
+        return result;
+    }
+
+    int[] allTiles() {
+        int[] result = new int[admitted.length];
+        for (int i = 0; i < result.length; i++)
+            result[i] = i;
+        return result;
+    }
+
+    // Must be called by one thread at a time, in admission order.
+    Ticket admit(int[] tiles) {
+        long[] positions = new long[tiles.length];
+        for (int i = 0; i < tiles.length; i++)
+            positions[i] = admitted[tiles[i]]++;
+        return new Ticket(tiles, positions);
+    }
+
+    // Must be called by one thread at a time, in admission order.
+    RotationTicket admit(int side, int layer) {
+        int face = kernels.turnedFace(side, layer);
+        Ticket faceTicket = admit(face >= 0 ? faceTiles(face) : new int[0]);
+        int[] strips = kernels.strips(side, layer);
+        int[][] stripTiles = new int[strips.length][tilesPerLine];
+        long[][] stripPositions = new long[strips.length][tilesPerLine];
+        for (int i = 0; i < strips.length; i++) {
+            for (int m = 0; m < tilesPerLine; m++) {
+                int along = m * block;
+                int tile = Strip.isVertical(strips[i])
+                        ? tile(Strip.side(strips[i]), along, Strip.index(strips[i]))
+                        : tile(Strip.side(strips[i]), Strip.index(strips[i]), along);
+                stripTiles[i][m] = tile;
+                stripPositions[i][m] = admitted[tile]++;
+            }
+        }
+        return new RotationTicket(side, layer, strips, faceTicket, stripTiles, stripPositions);
+    }
+
+    private void await(int tile, long position) {
+        int attempts = 0;
+        while (completed.get(tile) != position) {
+            attempts++;
+            if (attempts < SPINS)
+                Thread.onSpinWait();
+            else if (attempts < SPINS + YIELDS)
+                Thread.yield();
+            else
+                LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+
+    private void release(int tile) {
+        completed.incrementAndGet(tile);
+    }
+
+    // Waits until every tile of the ticket has served all earlier operations.
+    void await(Ticket ticket) {
+        for (int i = 0; i < ticket.tiles.length; i++)
+            await(ticket.tiles[i], ticket.positions[i]);
+    }
+
+    void release(Ticket ticket) {
+        for (int tile : ticket.tiles)
+            release(tile);
+    }
+
+    // Index of the tile along a strip that holds its k-th facelet.
+    private int along(int strip, int k) {
+        return (Strip.isReversed(strip) ? size - 1 - k : k) / block;
+    }
+
+    // Applies the rotation, waiting for each tile just before its first use
+    // and handing it on right after its last one.
+    void rotate(RotationTicket ticket) {
+        await(ticket.face);
+        kernels.turnFace(ticket.side, ticket.layer);
+        release(ticket.face);
+
+        int[] strips = ticket.strips;
+        int[] held = new int[strips.length];
+        for (int i = 0; i < strips.length; i++)
+            held[i] = -1;
+        for (int c = 0; c + 1 < cuts.length; c++) {
+            for (int i = 0; i < strips.length; i++) {
+                int m = along(strips[i], cuts[c]);
+                if (m == held[i])
+                    continue;
+                if (held[i] >= 0)
+                    release(ticket.stripTiles[i][held[i]]);
+                held[i] = m;
+                await(ticket.stripTiles[i][m], ticket.stripPositions[i][m]);
+            }
+            kernels.cycle(ticket.side, strips, cuts[c], cuts[c + 1]);
+        }
+        for (int i = 0; i < strips.length; i++) {
+            if (held[i] >= 0)
+                release(ticket.stripTiles[i][held[i]]);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package concurrentcube;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Facelets held by CubeNode processes, side i by node i % nodes. Cube runs
+ * its protocol in this process as usual; a rotation reads its four strips
+ * from their nodes and writes them to the next ones, so only the 4 * size
+ * moved facelets cross the wire, and face turns run on the node holding the
+ * face. Calls made at the same time use separate connections, so rotations
+ * of disjoint layers still overlap. Single facelets cost a round trip each.
+ * With Cube.enableStateTracking the nodes count colours and hash their own
+ * faces, nothing is sent back for it. Network failures surface as
+ * UncheckedIOException, and the connection they happened on is closed.
+ */
+public class RemoteFaceletStore implements TrackingFaceletStore {
+    private static class Connection {
+        final SocketChannel channel;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        Connection(InetSocketAddress address) throws IOException {
+            channel = SocketChannel.open(address);
+            channel.socket().setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        }
+    }
+
+    private final int size;
+    private final InetSocketAddress[] nodes;
+    // Idle connections of each node.
+    private final List<ConcurrentLinkedQueue<Connection>> idle;
+
+    // Sets up a solved cube on the nodes, replacing whatever they held.
+    public RemoteFaceletStore(int size, InetSocketAddress... nodes) {
+        if (nodes.length == 0)
+            throw new IllegalArgumentException("No nodes");
+        this.size = size;
+        this.nodes = nodes.clone();
+        this.idle = new ArrayList<>(nodes.length);
+        for (int i = 0; i < nodes.length; i++)
+            idle.add(new ConcurrentLinkedQueue<>());
+        for (int i = 0; i < nodes.length; i++) {
+            int sides = 0;
+            for (int side = i; side < NUMBER_OF_SIDES; side += nodes.length)
+                sides |= 1 << side;
+            Connection connection = take(i);
+            try {
+                connection.out.writeByte(CubeNode.INIT);
+                connection.out.writeInt(size);
+                connection.out.writeInt(sides);
+                finish(i, connection);
+            } catch (IOException e) {
+                throw broken(connection, e);
+            }
+        }
+    }
+
+    private int node(int side) {
+        return side % nodes.length;
+    }
+
+    private Connection take(int node) {
+        Connection connection = idle.get(node).poll();
+        if (connection != null)
+            return connection;
+        try {
+            return new Connection(nodes[node]);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Sends the request and waits for the acknowledgement.
+    private void finish(int node, Connection connection) throws IOException {
+        connection.out.flush();
+        connection.in.readByte();
+        idle.get(node).add(connection);
+    }
+
+    // Closes a connection that failed mid-request, its stream is out of step.
+    private static UncheckedIOException broken(Connection connection, IOException e) {
+        try {
+            connection.channel.close();
+        } catch (IOException closing) {
+            e.addSuppressed(closing);
+        }
+        return new UncheckedIOException(e);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int get(int side, int row, int column) {
+        int node = node(side);
+        Connection connection = take(node);
+        try {
+            connection.out.writeByte(CubeNode.GET);
+            connection.out.writeInt(side);
+            connection.out.writeInt(row);
+            connection.out.writeInt(column);
+            connection.out.flush();
+            int colour = connection.in.readByte();
+            idle.get(node).add(connection);
+            return colour;
+        } catch (IOException e) {
+            throw broken(connection, e);
+        }
+    }
+
+    @Override
+    public void set(int side, int row, int column, int colour) {
+        int node = node(side);
+        Connection connection = take(node);
+        try {
+            connection.out.writeByte(CubeNode.SET);
+            connection.out.writeInt(side);
+            connection.out.writeInt(row);
+            connection.out.writeInt(column);
+            connection.out.writeInt(colour);
+            finish(node, connection);
+        } catch (IOException e) {
+            throw broken(connection, e);
+        }
+    }
+
+    private byte[] read(int strip, int from, int to) {
+        int node = node(Strip.side(strip));
+        Connection connection = take(node);
+        try {
+            connection.out.writeByte(CubeNode.READ);
+            connection.out.writeInt(strip);
+            connection.out.writeInt(from);
+            connection.out.writeInt(to);
+            connection.out.flush();
+            byte[] result = new byte[to - from];
+            connection.in.readFully(result);
+            idle.get(node).add(connection);
+            return result;
+        } catch (IOException e) {
+            throw broken(connection, e);
+        }
+    }
+
+    private void write(int strip, int from, int to, byte[] colours) {
+        int node = node(Strip.side(strip));
+        Connection connection = take(node);
+        try {
+            connection.out.writeByte(CubeNode.WRITE);
+            connection.out.writeInt(strip);
+            connection.out.writeInt(from);
+            connection.out.writeInt(to);
+            connection.out.write(colours, 0, to - from);
+            finish(node, connection);
+        } catch (IOException e) {
+            throw broken(connection, e);
+        }
+    }
+
+    @Override
+    public void readStrip(int strip, int[] dst) {
+        byte[] colours = read(strip, 0, size);
+        for (int k = 0; k < size; k++)
+            dst[k] = colours[k];
+    }
+
+    @Override
+    public void writeStrip(int strip, int[] src) {
+        byte[] colours = new byte[size];
+        for (int k = 0; k < size; k++)
+            colours[k] = (byte) src[k];
+        write(strip, 0, size, colours);
+    }
+
+    @Override
+    public void cycle(int a, int b, int c, int d, int from, int to) {
+        byte[] tempD = read(d, from, to);
+        write(d, from, to, read(c, from, to));
+        write(c, from, to, read(b, from, to));
+        write(b, from, to, read(a, from, to));
+        write(a, from, to, tempD);
+    }
+
+    @Override
+    public void cycleAll(int[][] groups) {
+        for (int[] group : groups)
+            cycle(group[0], group[1], group[2], group[3], 0, size);
+    }
+
+    private void turn(int side, boolean clockwise) {
+        int node = node(side);
+        Connection connection = take(node);
+        try {
+            connection.out.writeByte(CubeNode.TURN);
+            connection.out.writeInt(side);
+            connection.out.writeInt(clockwise ? 1 : 0);
+            finish(node, connection);
+        } catch (IOException e) {
+            throw broken(connection, e);
+        }
+    }
+
+    @Override
+    public void turnClockwise(int side) {
+        turn(side, true);
+    }
+
+    @Override
+    public void turnCounterclockwise(int side) {
+        turn(side, false);
+    }
+
+    @Override
+    public void export(int side, byte[] dst, int offset) {
+        int node = node(side);
+        Connection connection = take(node);
+        try {
+            connection.out.writeByte(CubeNode.EXPORT);
+            connection.out.writeInt(side);
+            connection.out.flush();
+            connection.in.readFully(dst, offset, size * size);
+            idle.get(node).add(connection);
+        } catch (IOException e) {
+            throw broken(connection, e);
+        }
+    }
+
+    // Asks every node to track its faces.
+    @Override
+    public void track() {
+        for (int node = 0; node < nodes.length; node++) {
+            Connection connection = take(node);
+            try {
+                connection.out.writeByte(CubeNode.TRACK);
+                finish(node, connection);
+            } catch (IOException e) {
+                throw broken(connection, e);
+            }
+        }
+    }
+
+    // Each node hashes only its own faces, so the hashes combine by XOR.
+    @Override
+    public long stateHash() {
+        long hash = 0;
+        for (int node = 0; node < nodes.length; node++) {
+            Connection connection = take(node);
+            try {
+                connection.out.writeByte(CubeNode.HASH);
+                connection.out.flush();
+                hash ^= connection.in.readLong();
+                idle.get(node).add(connection);
+            } catch (IOException e) {
+                throw broken(connection, e);
+            }
+        }
+        return hash;
+    }
+
+    @Override
+    public int[] colourCounts(int side) {
+        int node = node(side);
+        Connection connection = take(node);
+        try {
+            connection.out.writeByte(CubeNode.COUNTS);
+            connection.out.writeInt(side);
+            connection.out.flush();
+            int[] counts = new int[NUMBER_OF_SIDES];
+            for (int colour = 0; colour < NUMBER_OF_SIDES; colour++)
+                counts[colour] = connection.in.readInt();
+            idle.get(node).add(connection);
+            return counts;
+        } catch (IOException e) {
+            throw broken(connection, e);
+        }
+    }
+
+    // Closes the connections, the nodes keep running. Every connection is
+    // closed even if some fail, the first failure is thrown at the end.
+    @Override
+    public void close() {
+        IOException failure = null;
+        for (ConcurrentLinkedQueue<Connection> connections : idle) {
+            Connection connection;
+            while ((connection = connections.poll()) != null) {
+                try {
+                    connection.channel.close();
+                } catch (IOException e) {
+                    if (failure == null)
+                        failure = e;
+                    else
+                        failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null)
+            throw new UncheckedIOException(failure);
+    }
+}
@@ -0,0 +1,34 @@
+package concurrentcube;
+
+/**
+ * A rotation applied to a cube. Sequence numbers match Cube.getVersion(),
+ * the first rotation has sequence 1.
+ */
+public class RotationEvent {
+    private final long sequence;
+    private final int side;
+    private final int layer;
+
+    RotationEvent(long sequence, int side, int layer) {
+        this.sequence = sequence;
+        this.side = side;
+        this.layer = layer;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getSide() {
+        return side;
+    }
+
+    public int getLayer() {
+        return layer;
+    }
+
+    @Override
+    public String toString() {
+        return "#" + sequence + " (" + side + ", " + layer + ")";
+    }
+}
@@ -0,0 +1,33 @@
+package concurrentcube;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Fair semaphore whose number of permits can be changed while permits are
+ * held. Lowering the limit below the permits in use leaves the semaphore
+ * in debt, new acquirers wait until enough holders are gone.
+ */
+@SuppressWarnings("serial") // never serialized
+class RotationLimit extends Semaphore {
+    // Permits standing for no limit.
+    static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private int limit;
+
+    RotationLimit(int limit) {
+        super(limit, true);
+        this.limit = limit;
+    }
+
+    synchronized void setLimit(int newLimit) {
+        if (newLimit > limit)
+            release(newLimit - limit);
+        else
+            reducePermits(limit - newLimit);
+        limit = newLimit;
+    }
+
+    synchronized int getLimit() {
+        return limit;
+    }
+}
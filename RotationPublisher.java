@@ -0,0 +1,121 @@
+package concurrentcube;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Publishes rotation events through a ring buffer. Rotating threads only
+ * store the event in its slot and wake idle subscribers, delivery runs on
+ * the executor. Each subscriber has its own cursor and receives events in
+ * sequence order, as many as it requested. A subscriber that falls behind
+ * by more than the ring capacity gets onError and is cancelled, as does one
+ * whose onNext throws.
+ */
+class RotationPublisher implements Flow.Publisher<RotationEvent> {
+    private static final int CAPACITY = 4096;
+    private static final int MASK = CAPACITY - 1;
+
+    private final AtomicReferenceArray<RotationEvent> ring;
+    private final List<RingSubscription> subscriptions;
+    private final Executor executor;
+    private final LongSupplier lastSequence;
+
+    RotationPublisher(LongSupplier lastSequence, Executor executor) {
+        this.ring = new AtomicReferenceArray<>(CAPACITY);
+        this.subscriptions = new CopyOnWriteArrayList<>();
+        this.executor = executor;
+        this.lastSequence = lastSequence;
+    }
+
+    void publish(RotationEvent event) {
+        ring.set((int) event.getSequence() & MASK, event);
+        for (RingSubscription subscription : subscriptions) {
+            subscription.signal();
+        }
+    }
+
+    // New subscribers receive events published after they subscribed.
+    @Override
+    public void subscribe(Flow.Subscriber<? super RotationEvent> subscriber) {
+        RingSubscription subscription = new RingSubscription(subscriber, lastSequence.getAsLong() + 1);
+        subscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+    }
+
+    private class RingSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super RotationEvent> subscriber;
+        private final AtomicLong requested = new AtomicLong(0);
+        private final AtomicInteger pending = new AtomicInteger(0);
+        private volatile boolean cancelled = false;
+        private long cursor;
+
+        RingSubscription(Flow.Subscriber<? super RotationEvent> subscriber, long cursor) {
+            this.subscriber = subscriber;
+            this.cursor = cursor;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Non-positive request " + n));
+                return;
+            }
+            requested.accumulateAndGet(n, (current, added) -> {
+                long sum = current + added;
+                return sum < 0 ? Long.MAX_VALUE : sum;
+            });
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+        }
+
+        void signal() {
+            if (!cancelled && pending.getAndIncrement() == 0)
+                executor.execute(this::drain);
+        }
+
+        // Only one drain runs at a time, signals that arrive meanwhile make it loop again.
+        private void drain() {
+            int missed = 1;
+            do {
+                long demand = requested.get();
+                long delivered = 0;
+                while (delivered < demand && !cancelled) {
+                    RotationEvent event = ring.get((int) cursor & MASK);
+                    if (event == null || event.getSequence() < cursor)
+                        break;
+                    if (event.getSequence() > cursor) {
+                        cancel();
+                        subscriber.onError(new IllegalStateException(
+                                "Subscriber fell behind by more than " + CAPACITY + " rotations"));
+                        return;
+                    }
+                    try {
+                        subscriber.onNext(event);
+                    } catch (RuntimeException e) {
+                        // A failing subscriber is cancelled, so it does not stall its drain.
+                        cancel();
+                        subscriber.onError(e);
+                        return;
+                    }
+                    cursor++;
+                    delivered++;
+                }
+                if (delivered > 0 && demand != Long.MAX_VALUE)
+                    requested.addAndGet(-delivered);
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
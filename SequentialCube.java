@@ -0,0 +1,59 @@
+package concurrentcube;
+
+/**
+ * Cube for callers that use it from a single thread. Runs the same
+ * kernels as Cube, but without semaphores, callbacks or change tracking,
+ * so a rotation costs only the facelet moves. Not thread-safe.
+ */
+public class SequentialCube implements AutoCloseable {
+    private final CubeKernels kernels;
+
+    public SequentialCube(int size) {
+        this(new ArrayFaceletStore(size));
+    }
+
+    public SequentialCube(FaceletStore store) {
+        this.kernels = new CubeKernels(store);
+    }
+
+    public int getSize() {
+        return kernels.size();
+    }
+
+    public void rotate(int side, int layer) {
+        if (side < CubeKernels.TOP || side > CubeKernels.BOTTOM)
+            return;
+        kernels.rotate(side, layer);
+    }
+
+    // Layers fromLayer to toLayer (both inclusive) of the side as one wide move, see Cube.rotateRange.
+    public void rotateRange(int side, int fromLayer, int toLayer) {
+        if (side < CubeKernels.TOP || side > CubeKernels.BOTTOM)
+            return;
+        if (fromLayer < 0 || fromLayer > toLayer || toLayer >= kernels.size())
+            throw new IllegalArgumentException("Bad layer range " + fromLayer + ".." + toLayer);
+        kernels.rotateRange(side, fromLayer, toLayer);
+    }
+
+    // The state queries below read the faces on every call.
+    public boolean isFaceUniform(int side) {
+        return kernels.isFaceUniform(side);
+    }
+
+    public boolean isSolved() {
+        return kernels.isSolved();
+    }
+
+    public long stateHash() {
+        return kernels.stateHash();
+    }
+
+    public String show() {
+        return kernels.snapshot();
+    }
+
+    @Override
+    public void close() {
+        kernels.store().close();
+    }
+}
@@ -0,0 +1,37 @@
+package concurrentcube;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spin-then-park acquisition of a semaphore with a self-tuning spin limit:
+ * the limit doubles whenever spinning got the permits and halves whenever
+ * the caller had to park anyway. Spinning uses the timed tryAcquire, which
+ * unlike the untimed one respects the fairness of the semaphore. A fair
+ * semaphore never hands permits to a newcomer while threads are queued, so
+ * spinning stops as soon as there is a queue, without charging the budget.
+ * Updates of the limit may race, it is only a hint.
+ */
+class SpinBudget {
+    private static final int MIN_SPINS = 16;
+    private static final int MAX_SPINS = 1 << 14;
+
+    private int spins = 256;
+
+    void acquire(Semaphore semaphore, int permits) throws InterruptedException {
+        int limit = spins;
+        for (int i = 0; i < limit; i++) {
+            if (semaphore.tryAcquire(permits, 0, TimeUnit.NANOSECONDS)) {
+                spins = Math.min(MAX_SPINS, limit * 2);
+                return;
+            }
+            if (semaphore.hasQueuedThreads()) {
+                semaphore.acquire(permits);
+                return;
+            }
+            Thread.onSpinWait();
+        }
+        spins = Math.max(MIN_SPINS, limit / 2);
+        semaphore.acquire(permits);
+    }
+}
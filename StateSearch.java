@@ -0,0 +1,239 @@
+package concurrentcube;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Breadth-first search for the shortest sequence of rotations that takes a
+ * cube from a start state to a state matching a target pattern, meant for
+ * small cubes. Levels are expanded in parallel on a ForkJoinPool with the
+ * same kernels as Cube.rotate; states are kept as flat byte arrays and
+ * deduplicated by their state hash in a lock-free set, so two states
+ * with colliding 64-bit hashes would be taken for one.
+ *
+ * Moves are all 6 * size rotations (side, layer), which covers both
+ * directions of every slice: rotate(side, layer) is undone by
+ * rotate(opposite side, size - 1 - layer).
+ */
+public class StateSearch {
+    private static final int DEFAULT_MAX_STATES = 1 << 22;
+    // Frontier nodes expanded by a single fork-join leaf.
+    private static final int THRESHOLD = 256;
+
+    private final int size;
+    private final ForkJoinPool pool;
+    private final int maxStates;
+
+    public StateSearch(int size) {
+        this(size, ForkJoinPool.commonPool(), DEFAULT_MAX_STATES);
+    }
+
+    // The search fails with IllegalStateException once it has seen more than maxStates states.
+    public StateSearch(int size, ForkJoinPool pool, int maxStates) {
+        this.size = size;
+        this.pool = pool;
+        this.maxStates = maxStates;
+    }
+
+    private static class Node {
+        final byte[] state;
+        final long hash;
+        final Node parent;
+        final int side;
+        final int layer;
+
+        Node(byte[] state, long hash, Node parent, int side, int layer) {
+            this.state = state;
+            this.hash = hash;
+            this.parent = parent;
+            this.side = side;
+            this.layer = layer;
+        }
+    }
+
+    public static class Result {
+        private final int[] sides;
+        private final int[] layers;
+        private final long nodes;
+        private final long nanos;
+
+        private Result(int[] sides, int[] layers, long nodes, long nanos) {
+            this.sides = sides;
+            this.layers = layers;
+            this.nodes = nodes;
+            this.nanos = nanos;
+        }
+
+        public boolean isFound() {
+            return sides != null;
+        }
+
+        // Number of rotations, -1 when no matching state was found.
+        public int getLength() {
+            return sides == null ? -1 : sides.length;
+        }
+
+        public int getSide(int i) {
+            return sides[i];
+        }
+
+        public int getLayer(int i) {
+            return layers[i];
+        }
+
+        // States generated, including duplicates that were dropped.
+        public long getNodes() {
+            return nodes;
+        }
+
+        public double getNodesPerSecond() {
+            return nodes / Math.max(nanos / 1e9, 1e-9);
+        }
+    }
+
+    // Colours of a string in the format of Cube.show(), '.' becomes -1 in patterns.
+    private byte[] parse(String shown, boolean pattern) {
+        int length = CubeKernels.NUMBER_OF_SIDES * size * size;
+        if (shown.length() != length)
+            throw new IllegalArgumentException("Expected " + length + " facelets, got " + shown.length());
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++) {
+            char c = shown.charAt(i);
+            if (pattern && c == '.')
+                result[i] = -1;
+            else if (c >= '0' && c < '0' + CubeKernels.NUMBER_OF_SIDES)
+                result[i] = (byte) (c - '0');
+            else
+                throw new IllegalArgumentException("Unexpected facelet '" + c + "' at " + i);
+        }
+        return result;
+    }
+
+    private static boolean matches(byte[] state, byte[] target) {
+        for (int i = 0; i < state.length; i++) {
+            if (target[i] >= 0 && state[i] != target[i])
+                return false;
+        }
+        return true;
+    }
+
+    @SuppressWarnings("serial") // never serialized
+    private class Expansion extends RecursiveTask<List<Node>> {
+        private final Node[] frontier;
+        private final int from;
+        private final int to;
+        private final byte[] target;
+        private final ConcurrentLongSet visited;
+        private final AtomicLong nodes;
+        private final AtomicReference<Node> found;
+
+        Expansion(Node[] frontier, int from, int to, byte[] target, ConcurrentLongSet visited,
+                  AtomicLong nodes, AtomicReference<Node> found) {
+            this.frontier = frontier;
+            this.from = from;
+            this.to = to;
+            this.target = target;
+            this.visited = visited;
+            this.nodes = nodes;
+            this.found = found;
+        }
+
+        @Override
+        protected List<Node> compute() {
+            if (to - from > THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                Expansion left = new Expansion(frontier, from, middle, target, visited, nodes, found);
+                left.fork();
+                List<Node> children = new Expansion(frontier, middle, to, target, visited, nodes, found).compute();
+                List<Node> leftChildren = left.join();
+                leftChildren.addAll(children);
+                return leftChildren;
+            }
+            FlatFaceletStore store = new FlatFaceletStore(size);
+            CubeKernels kernels = new CubeKernels(store);
+            kernels.track();
+            List<Node> children = new ArrayList<>();
+            long generated = 0;
+            for (int i = from; i < to && found.get() == null; i++) {
+                Node parent = frontier[i];
+                for (int side = 0; side < CubeKernels.NUMBER_OF_SIDES; side++) {
+                    for (int layer = 0; layer < size; layer++) {
+                        // Skip the move that undoes the previous one.
+                        if (parent.parent != null && side == CubeKernels.getOppositeSide(parent.side)
+                                && layer == size - 1 - parent.layer)
+                            continue;
+                        store.load(parent.state);
+                        // The hash change of a rotation does not depend on
+                        // the hash it starts from, only on the facelets.
+                        long before = kernels.stateHash();
+                        kernels.rotate(side, layer);
+                        long hash = parent.hash ^ before ^ kernels.stateHash();
+                        generated++;
+                        if (!visited.add(hash))
+                            continue;
+                        Node child = new Node(store.pack(), hash, parent, side, layer);
+                        if (matches(child.state, target))
+                            found.compareAndSet(null, child);
+                        children.add(child);
+                    }
+                }
+            }
+            nodes.addAndGet(generated);
+            return children;
+        }
+    }
+
+    private static Result result(Node node, long nodes, long nanos) {
+        int length = 0;
+        for (Node n = node; n.parent != null; n = n.parent)
+            length++;
+        int[] sides = new int[length];
+        int[] layers = new int[length];
+        for (Node n = node; n.parent != null; n = n.parent) {
+            length--;
+            sides[length] = n.side;
+            layers[length] = n.layer;
+        }
+        return new Result(sides, layers, nodes, nanos);
+    }
+
+    /**
+     * Shortest sequence of at most maxDepth rotations from start to a state
+     * matching target. Both are in the format of Cube.show(), a '.' in the
+     * target matches any colour.
+     */
+    public Result search(String start, String target, int maxDepth) {
+        long begin = System.nanoTime();
+        byte[] startState = parse(start, false);
+        byte[] pattern = parse(target, true);
+        FlatFaceletStore store = new FlatFaceletStore(size);
+        store.load(startState);
+        Node root = new Node(startState, new CubeKernels(store).stateHash(), null, -1, -1);
+        if (matches(startState, pattern))
+            return result(root, 0, System.nanoTime() - begin);
+
+        // Sized for what each level may add, so small searches stay small.
+        int moves = CubeKernels.NUMBER_OF_SIDES * size;
+        ConcurrentLongSet visited = new ConcurrentLongSet(Math.min(maxStates, 1 + moves));
+        visited.add(root.hash);
+        AtomicLong nodes = new AtomicLong(0);
+        AtomicReference<Node> found = new AtomicReference<>(null);
+        Node[] frontier = {root};
+        long seen = 1;
+        for (int depth = 0; depth < maxDepth && frontier.length > 0; depth++) {
+            visited = visited.withRoomFor((int) Math.min(maxStates, seen + (long) frontier.length * moves));
+            List<Node> next = pool.invoke(new Expansion(frontier, 0, frontier.length, pattern, visited, nodes, found));
+            if (found.get() != null)
+                return result(found.get(), nodes.get(), System.nanoTime() - begin);
+            seen += next.size();
+            if (seen > maxStates)
+                throw new IllegalStateException("Search saw more than " + maxStates + " states");
+            frontier = next.toArray(new Node[0]);
+        }
+        return new Result(null, null, nodes.get(), System.nanoTime() - begin);
+    }
+}
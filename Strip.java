@@ -0,0 +1,47 @@
+package concurrentcube;
+
+/**
+ * A strip is one row or column of a side, packed into an int together
+ * with its orientation. Element k of a reversed strip is its (size-1-k)-th
+ * facelet, so that every rotation kernel is a plain 4-cycle of strips.
+ */
+public final class Strip {
+    private static final int VERTICAL = 1 << 3;
+    private static final int REVERSED = 1 << 4;
+    private static final int INDEX_SHIFT = 5;
+
+    private Strip() {
+    }
+
+    public static int row(int side, int index) {
+        return index << INDEX_SHIFT | side;
+    }
+
+    public static int column(int side, int index) {
+        return index << INDEX_SHIFT | VERTICAL | side;
+    }
+
+    public static int reversed(int strip) {
+        return strip | REVERSED;
+    }
+
+    public static int side(int strip) {
+        return strip & 7;
+    }
+
+    public static int index(int strip) {
+        return strip >>> INDEX_SHIFT;
+    }
+
+    public static boolean isVertical(int strip) {
+        return (strip & VERTICAL) != 0;
+    }
+
+    public static boolean isReversed(int strip) {
+        return (strip & REVERSED) != 0;
+    }
+
+    public static boolean isPlainRow(int strip) {
+        return (strip & (VERTICAL | REVERSED)) == 0;
+    }
+}
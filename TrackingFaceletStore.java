@@ -0,0 +1,18 @@
+package concurrentcube;
+
+/**
+ * A FaceletStore that keeps the colour counts and the Zobrist hash of its
+ * facelets itself (see Cube.enableStateTracking), for stores that hold
+ * them elsewhere and would otherwise send moved facelets back to be
+ * counted. Once track has been called, CubeKernels asks the store instead
+ * of counting the facelets a rotation moves.
+ */
+public interface TrackingFaceletStore extends FaceletStore {
+    // Starts keeping the counts and the hash, must not run concurrently with writes.
+    void track();
+
+    long stateHash();
+
+    // Number of facelets of each colour on the side.
+    int[] colourCounts(int side);
+}
@@ -0,0 +1,66 @@
+package concurrentcube;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded cache from state hashes (see Cube.stateHash(), which takes O(1)
+ * after Cube.enableStateTracking()) to values, safe for concurrent use
+ * without locks. Each hash maps to a bucket of two slots: a new entry goes
+ * to the first slot and pushes the previous one into the second, evicting
+ * whatever was there. Racing writers may lose an entry, which for a cache
+ * only costs a later miss.
+ */
+public class TranspositionTable<V> {
+    private static class Entry<V> {
+        final long key;
+        final V value;
+
+        Entry(long key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry<V>> slots;
+    private final int bucketMask;
+
+    // Capacity is rounded up to a power of two, at least 2.
+    public TranspositionTable(int capacity) {
+        int slotCount = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(slotCount);
+        this.bucketMask = slotCount / 2 - 1;
+    }
+
+    // The hash is already well mixed, only fold in the upper half.
+    private int bucket(long key) {
+        return (int) (key ^ (key >>> 32)) & bucketMask;
+    }
+
+    public V get(long key) {
+        int first = 2 * bucket(key);
+        Entry<V> entry = slots.get(first);
+        if (entry != null && entry.key == key)
+            return entry.value;
+        entry = slots.get(first + 1);
+        if (entry != null && entry.key == key)
+            return entry.value;
+        return null;
+    }
+
+    public void put(long key, V value) {
+        int first = 2 * bucket(key);
+        Entry<V> fresh = new Entry<>(key, value);
+        Entry<V> previous = slots.getAndSet(first, fresh);
+        if (previous != null && previous.key != key) {
+            Entry<V> second = slots.get(first + 1);
+            if (second != null && second.key == key)
+                slots.compareAndSet(first + 1, second, previous);
+            else
+                slots.set(first + 1, previous);
+        }
+    }
+
+    public int capacity() {
+        return slots.length();
+    }
+}
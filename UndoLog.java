@@ -0,0 +1,95 @@
+package concurrentcube;
+
+/**
+ * Bounded history of rotations for Cube.undo and Cube.redo. Holds the last
+ * capacity rotations in a ring, oldest ones are dropped, and a stack of the
+ * undone ones that a new rotation clears. Rotations are recorded by many
+ * threads at once, so all methods are synchronized.
+ */
+class UndoLog {
+    private final int size;
+    private final int capacity;
+    private final int[] sides;
+    private final int[] layers;
+    private int first = 0;
+    private int undoable = 0;
+    // Undone rotations, the last one undone on top.
+    private final int[] redoSides;
+    private final int[] redoLayers;
+    private int redoable = 0;
+
+    UndoLog(int capacity, int size) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Undo capacity must be positive, got " + capacity);
+        this.size = size;
+        this.capacity = capacity;
+        this.sides = new int[capacity];
+        this.layers = new int[capacity];
+        this.redoSides = new int[capacity];
+        this.redoLayers = new int[capacity];
+    }
+
+    private void push(int side, int layer) {
+        if (undoable == capacity) {
+            first = (first + 1) % capacity;
+            undoable--;
+        }
+        int slot = (first + undoable) % capacity;
+        sides[slot] = side;
+        layers[slot] = layer;
+        undoable++;
+    }
+
+    synchronized void record(int side, int layer) {
+        push(side, layer);
+        redoable = 0;
+    }
+
+    /**
+     * Takes up to count of the latest rotations off the log onto the redo
+     * stack and returns their inverses, newest first, as {sides, layers}.
+     * rotate(side, layer) is undone by rotate(opposite side, size - 1 - layer).
+     */
+    synchronized int[][] takeUndo(int count) {
+        int taken = Math.min(count, undoable);
+        int[][] result = new int[2][taken];
+        for (int i = 0; i < taken; i++) {
+            undoable--;
+            int slot = (first + undoable) % capacity;
+            redoSides[redoable] = sides[slot];
+            redoLayers[redoable++] = layers[slot];
+            result[0][i] = CubeKernels.getOppositeSide(sides[slot]);
+            result[1][i] = size - 1 - layers[slot];
+        }
+        return result;
+    }
+
+    // The rotation takeUndo(1) would return, as {side, layer}, or null.
+    synchronized int[] peekUndo() {
+        if (undoable == 0)
+            return null;
+        int slot = (first + undoable - 1) % capacity;
+        return new int[]{CubeKernels.getOppositeSide(sides[slot]), size - 1 - layers[slot]};
+    }
+
+    // The rotation takeRedo(1) would return, as {side, layer}, or null.
+    synchronized int[] peekRedo() {
+        if (redoable == 0)
+            return null;
+        return new int[]{redoSides[redoable - 1], redoLayers[redoable - 1]};
+    }
+
+    // Takes up to count undone rotations back onto the log and returns them
+    // in the order to apply them again, as {sides, layers}.
+    synchronized int[][] takeRedo(int count) {
+        int taken = Math.min(count, redoable);
+        int[][] result = new int[2][taken];
+        for (int i = 0; i < taken; i++) {
+            redoable--;
+            result[0][i] = redoSides[redoable];
+            result[1][i] = redoLayers[redoable];
+            push(redoSides[redoable], redoLayers[redoable]);
+        }
+        return result;
+    }
+}
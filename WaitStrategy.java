@@ -0,0 +1,13 @@
+package concurrentcube;
+
+/**
+ * How a Cube waits for admission, for the previous axis to drain and for
+ * its layer, see Cube.setWaitStrategy.
+ */
+public enum WaitStrategy {
+    // Parks in Semaphore.acquire right away.
+    BLOCKING,
+    // Spins on the semaphore for a while before parking, the length of the
+    // spin adapts to how often spinning was enough.
+    ADAPTIVE
+}
@@ -0,0 +1,95 @@
+package concurrentcube;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Strip 4-cycles of FlatFaceletStore on the Vector API. A strip of the flat
+ * layout is an arithmetic progression of offsets: step 1 for rows, size for
+ * columns, negated when reversed. Rows are moved with plain vector loads and
+ * stores, other strips with gathers and scatters over a lane map of the step.
+ * Kept out of the main sources, as it only compiles with --add-modules
+ * jdk.incubator.vector; FlatFaceletStore loads it by name when the module
+ * is in the boot layer.
+ */
+final class VectorKernels implements FlatFaceletStore.Kernels {
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+    private final int size;
+    private final byte[] facelets;
+    // Lane offsets i * step for the steps -1, size and -size.
+    private final int[] backwardRow;
+    private final int[] forwardColumn;
+    private final int[] backwardColumn;
+
+    VectorKernels(int size, byte[] facelets) {
+        this.size = size;
+        this.facelets = facelets;
+        int lanes = SPECIES.length();
+        this.backwardRow = new int[lanes];
+        this.forwardColumn = new int[lanes];
+        this.backwardColumn = new int[lanes];
+        for (int i = 0; i < lanes; i++) {
+            backwardRow[i] = -i;
+            forwardColumn[i] = i * size;
+            backwardColumn[i] = -i * size;
+        }
+    }
+
+    private int step(int strip) {
+        int step = Strip.isVertical(strip) ? size : 1;
+        return Strip.isReversed(strip) ? -step : step;
+    }
+
+    // Offset of the k-th facelet of the strip.
+    private int offset(int strip, int k) {
+        int side = Strip.side(strip) * size * size;
+        int position = Strip.isReversed(strip) ? size - 1 - k : k;
+        if (Strip.isVertical(strip))
+            return side + position * size + Strip.index(strip);
+        return side + Strip.index(strip) * size + position;
+    }
+
+    private int[] lanes(int step) {
+        if (step == -1)
+            return backwardRow;
+        return step > 0 ? forwardColumn : backwardColumn;
+    }
+
+    private ByteVector load(int strip, int step, int k) {
+        if (step == 1)
+            return ByteVector.fromArray(SPECIES, facelets, offset(strip, k));
+        return ByteVector.fromArray(SPECIES, facelets, offset(strip, k), lanes(step), 0);
+    }
+
+    private void store(ByteVector vector, int strip, int step, int k) {
+        if (step == 1)
+            vector.intoArray(facelets, offset(strip, k));
+        else
+            vector.intoArray(facelets, offset(strip, k), lanes(step), 0);
+    }
+
+    // The same as FaceletStore.cycle, whole vectors first and the rest one facelet at a time.
+    @Override
+    public void cycle(int a, int b, int c, int d, int from, int to) {
+        int stepA = step(a);
+        int stepB = step(b);
+        int stepC = step(c);
+        int stepD = step(d);
+        int k = from;
+        for (int upper = from + SPECIES.loopBound(to - from); k < upper; k += SPECIES.length()) {
+            ByteVector tempD = load(d, stepD, k);
+            store(load(c, stepC, k), d, stepD, k);
+            store(load(b, stepB, k), c, stepC, k);
+            store(load(a, stepA, k), b, stepB, k);
+            store(tempD, a, stepA, k);
+        }
+        for (; k < to; k++) {
+            byte tempD = facelets[offset(d, k)];
+            facelets[offset(d, k)] = facelets[offset(c, k)];
+            facelets[offset(c, k)] = facelets[offset(b, k)];
+            facelets[offset(b, k)] = facelets[offset(a, k)];
+            facelets[offset(a, k)] = tempD;
+        }
+    }
+}